@@ -31,9 +31,10 @@ public class InitializeReceiver extends BroadcastReceiver {
     @Override
     @SuppressLint("UnsafeProtectedBroadcastReceiver")
     public void onReceive(Context context, Intent intent) {
-        final AirDropManager airDropManager = new AirDropManager(context,
-                WarpShareApplication.from(context).getCertificateManager());
+        final WarpShareApplication application = WarpShareApplication.from(context);
+        final AirDropManager airDropManager = application.acquireAirDropManager();
         airDropManager.registerTrigger(TriggerReceiver.getTriggerIntent(context));
+        application.releaseAirDropManager();
         Log.d(TAG, "Initialized");
     }
 
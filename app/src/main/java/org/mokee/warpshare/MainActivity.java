@@ -21,6 +21,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.text.format.Formatter;
 import android.util.ArrayMap;
 import android.util.Log;
@@ -44,6 +45,7 @@ import org.mokee.warpshare.airdrop.AirDropManager;
 import org.mokee.warpshare.airdrop.AirDropPeer;
 import org.mokee.warpshare.base.DiscoverListener;
 import org.mokee.warpshare.base.Entity;
+import org.mokee.warpshare.base.EntityResolver;
 import org.mokee.warpshare.base.Peer;
 import org.mokee.warpshare.base.SendListener;
 import org.mokee.warpshare.base.SendingSession;
@@ -64,8 +66,12 @@ public class MainActivity extends AppCompatActivity implements DiscoverListener
 
     private static final String TAG = "MainActivity";
 
+    // Rebinds only the status text and progress bar of a row
+    private static final Object PAYLOAD_PROGRESS = new Object();
+
     private static final int REQUEST_PICK = 1;
     private static final int REQUEST_SETUP = 2;
+    private static final int REQUEST_PICK_DIRECTORY = 3;
 
     private final ArrayMap<String, Peer> mPeers = new ArrayMap<>();
 
@@ -74,12 +80,15 @@ public class MainActivity extends AppCompatActivity implements DiscoverListener
     private PeersAdapter mAdapter;
 
     private String mPeerPicked = null;
+    private long mPickedAt = 0;
 
     private PartialWakeLock mWakeLock;
 
     private AirDropManager mAirDropManager;
     private NearShareManager mNearShareManager;
 
+    private EntityResolver mEntityResolver;
+
     private boolean mIsInSetup = false;
 
     private final WifiStateMonitor mWifiStateMonitor = new WifiStateMonitor() {
@@ -106,12 +115,13 @@ public class MainActivity extends AppCompatActivity implements DiscoverListener
 
         mWakeLock = new PartialWakeLock(this, TAG);
 
-        mAirDropManager = new AirDropManager(this,
-                WarpShareApplication.from(this).getCertificateManager());
+        mAirDropManager = WarpShareApplication.from(this).acquireAirDropManager();
         mAirDropManager.registerTrigger(TriggerReceiver.getTriggerIntent(this));
 
         mNearShareManager = new NearShareManager(this);
 
+        mEntityResolver = new EntityResolver(this);
+
         mAdapter = new PeersAdapter(this);
 
         final RecyclerView peersView = findViewById(R.id.peers);
@@ -124,7 +134,10 @@ public class MainActivity extends AppCompatActivity implements DiscoverListener
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        mAirDropManager.destroy();
+        if (mIsDiscovering) {
+            mAirDropManager.stopDiscover(this);
+        }
+        WarpShareApplication.from(this).releaseAirDropManager();
         mNearShareManager.destroy();
     }
 
@@ -151,8 +164,8 @@ public class MainActivity extends AppCompatActivity implements DiscoverListener
         super.onPause();
 
         if (mIsDiscovering && !mShouldKeepDiscovering) {
-            mAirDropManager.stopDiscover();
-            mNearShareManager.stopDiscover();
+            mAirDropManager.stopDiscover(this);
+            mNearShareManager.stopDiscover(this);
             mIsDiscovering = false;
         }
 
@@ -182,6 +195,7 @@ public class MainActivity extends AppCompatActivity implements DiscoverListener
         switch (requestCode) {
             case REQUEST_PICK:
                 mShouldKeepDiscovering = false;
+                mPickedAt = SystemClock.elapsedRealtime();
                 if (resultCode == RESULT_OK && mPeerPicked != null && data != null) {
                     final Peer peer = mPeers.get(mPeerPicked);
                     if (peer != null) {
@@ -193,6 +207,16 @@ public class MainActivity extends AppCompatActivity implements DiscoverListener
                     }
                 }
                 break;
+            case REQUEST_PICK_DIRECTORY:
+                mShouldKeepDiscovering = false;
+                mPickedAt = SystemClock.elapsedRealtime();
+                if (resultCode == RESULT_OK && mPeerPicked != null && data != null) {
+                    final Peer peer = mPeers.get(mPeerPicked);
+                    if (peer != null) {
+                        sendDirectory(peer, data.getData());
+                    }
+                }
+                break;
             case REQUEST_SETUP:
                 mIsInSetup = false;
                 if (resultCode != RESULT_OK) {
@@ -210,17 +234,32 @@ public class MainActivity extends AppCompatActivity implements DiscoverListener
     @Override
     public void onPeerFound(Peer peer) {
         Log.d(TAG, "Found: " + peer.id + " (" + peer.name + ")");
-        mPeers.put(peer.id, peer);
-        mPeerStates.put(peer.id, new PeerState());
-        mAdapter.notifyDataSetChanged();
+        final boolean added = mPeers.put(peer.id, peer) == null;
+        if (added) {
+            mPeerStates.put(peer.id, new PeerState());
+            mAdapter.notifyItemInserted(mPeers.indexOfKey(peer.id));
+        } else {
+            notifyPeerChanged(peer, null);
+        }
     }
 
     @Override
     public void onPeerDisappeared(Peer peer) {
         Log.d(TAG, "Disappeared: " + peer.id + " (" + peer.name + ")");
-        mPeers.remove(peer.id);
+        final int index = mPeers.indexOfKey(peer.id);
+        if (index < 0) {
+            return;
+        }
+        mPeers.removeAt(index);
         mPeerStates.remove(peer.id);
-        mAdapter.notifyDataSetChanged();
+        mAdapter.notifyItemRemoved(index);
+    }
+
+    private void notifyPeerChanged(Peer peer, Object payload) {
+        final int index = mPeers.indexOfKey(peer.id);
+        if (index >= 0) {
+            mAdapter.notifyItemChanged(index, payload);
+        }
     }
 
     private boolean setupIfNeeded() {
@@ -242,6 +281,7 @@ public class MainActivity extends AppCompatActivity implements DiscoverListener
     private void handleItemClick(Peer peer) {
         mPeerPicked = peer.id;
         mShouldKeepDiscovering = true;
+        prepare(peer);
         Intent requestIntent = new Intent(Intent.ACTION_GET_CONTENT);
         requestIntent.addCategory(Intent.CATEGORY_OPENABLE);
         requestIntent.setType("*/*");
@@ -249,6 +289,26 @@ public class MainActivity extends AppCompatActivity implements DiscoverListener
         startActivityForResult(Intent.createChooser(requestIntent, "File"), REQUEST_PICK);
     }
 
+    private boolean handleItemLongClick(Peer peer) {
+        // Only AirDrop can carry a directory tree
+        if (!(peer instanceof AirDropPeer)) {
+            return false;
+        }
+        mPeerPicked = peer.id;
+        mShouldKeepDiscovering = true;
+        prepare(peer);
+        startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE), REQUEST_PICK_DIRECTORY);
+        return true;
+    }
+
+    private void prepare(Peer peer) {
+        if (peer instanceof AirDropPeer) {
+            mAirDropManager.prepare((AirDropPeer) peer);
+        } else if (peer instanceof NearSharePeer) {
+            mNearShareManager.prepare((NearSharePeer) peer);
+        }
+    }
+
     private void handleItemCancelClick(Peer peer, PeerState state) {
         if (state.sending != null) {
             state.sending.cancel();
@@ -260,26 +320,26 @@ public class MainActivity extends AppCompatActivity implements DiscoverListener
         state.status = R.string.status_waiting_for_confirm;
         state.bytesTotal = -1;
         state.bytesSent = 0;
-        mAdapter.notifyDataSetChanged();
+        notifyPeerChanged(peer, null);
         mShouldKeepDiscovering = true;
         mWakeLock.acquire();
     }
 
     private void handleSendRejected(Peer peer, PeerState state) {
         state.status = R.string.status_rejected;
-        mAdapter.notifyDataSetChanged();
+        notifyPeerChanged(peer, null);
         mShouldKeepDiscovering = false;
         mWakeLock.release();
     }
 
     private void handleSending(Peer peer, PeerState state) {
         state.status = R.string.status_sending;
-        mAdapter.notifyDataSetChanged();
+        notifyPeerChanged(peer, null);
     }
 
     private void handleSendSucceed(Peer peer, PeerState state) {
         state.status = 0;
-        mAdapter.notifyDataSetChanged();
+        notifyPeerChanged(peer, null);
         mShouldKeepDiscovering = false;
         mWakeLock.release();
     }
@@ -289,23 +349,28 @@ public class MainActivity extends AppCompatActivity implements DiscoverListener
         if (state != null) {
             state.status = 0;
         }
-        mAdapter.notifyDataSetChanged();
+        notifyPeerChanged(peer, null);
         mShouldKeepDiscovering = false;
         mWakeLock.release();
     }
 
     private void sendFile(Peer peer, Uri uri, String type) {
-        final Entity entity = new Entity(this, uri, type);
-        if (!entity.ok()) {
-            Log.w(TAG, "No file was selected");
-            handleSendFailed(peer);
-            return;
-        }
+        final List<Uri> uris = new ArrayList<>();
+        uris.add(uri);
+
+        sendFile(peer, uris, type);
+    }
 
-        final List<Entity> entities = new ArrayList<>();
-        entities.add(entity);
+    private void sendDirectory(Peer peer, Uri treeUri) {
+        mEntityResolver.resolveDirectory(treeUri, entities -> {
+            if (entities.isEmpty()) {
+                Log.w(TAG, "No directory was selected");
+                handleSendFailed(peer);
+                return;
+            }
 
-        sendFile(peer, entities);
+            sendFile(peer, entities);
+        });
     }
 
     private void sendFile(Peer peer, ClipData clipData, String type) {
@@ -315,21 +380,24 @@ public class MainActivity extends AppCompatActivity implements DiscoverListener
             return;
         }
 
-        final List<Entity> entities = new ArrayList<>();
+        final List<Uri> uris = new ArrayList<>();
         for (int i = 0; i < clipData.getItemCount(); i++) {
-            final Entity entity = new Entity(this, clipData.getItemAt(i).getUri(), type);
-            if (entity.ok()) {
-                entities.add(entity);
-            }
+            uris.add(clipData.getItemAt(i).getUri());
         }
 
-        if (entities.isEmpty()) {
-            Log.w(TAG, "No file was selected");
-            handleSendFailed(peer);
-            return;
-        }
+        sendFile(peer, uris, type);
+    }
+
+    private void sendFile(Peer peer, List<Uri> uris, String type) {
+        mEntityResolver.resolve(uris, type, entities -> {
+            if (entities.isEmpty()) {
+                Log.w(TAG, "No file was selected");
+                handleSendFailed(peer);
+                return;
+            }
 
-        sendFile(peer, entities);
+            sendFile(peer, entities);
+        });
     }
 
     private void sendFile(final Peer peer, final List<Entity> entities) {
@@ -340,6 +408,12 @@ public class MainActivity extends AppCompatActivity implements DiscoverListener
             return;
         }
 
+        if (mPickedAt != 0) {
+            Log.d(TAG, "Sending " + (SystemClock.elapsedRealtime() - mPickedAt)
+                    + " ms after files were picked");
+            mPickedAt = 0;
+        }
+
         handleSendConfirming(peer, state);
 
         final SendListener listener = new SendListener() {
@@ -357,7 +431,7 @@ public class MainActivity extends AppCompatActivity implements DiscoverListener
             public void onProgress(long bytesSent, long bytesTotal) {
                 state.bytesSent = bytesSent;
                 state.bytesTotal = bytesTotal;
-                mAdapter.notifyDataSetChanged();
+                notifyPeerChanged(peer, PAYLOAD_PROGRESS);
             }
 
             @Override
@@ -406,28 +480,25 @@ public class MainActivity extends AppCompatActivity implements DiscoverListener
             if (state.status != 0) {
                 holder.itemView.setSelected(true);
                 holder.statusView.setVisibility(View.VISIBLE);
-                if (state.status == R.string.status_sending && state.bytesTotal != -1) {
-                    holder.statusView.setText(getString(R.string.status_sending_progress,
-                            Formatter.formatFileSize(MainActivity.this, state.bytesSent),
-                            Formatter.formatFileSize(MainActivity.this, state.bytesTotal)));
+                if (isShowingProgress(state)) {
+                    bindProgress(holder, state);
                 } else {
                     holder.statusView.setText(state.status);
                 }
             } else {
                 holder.itemView.setSelected(false);
-                holder.statusView.setVisibility(View.GONE);
+                if (peer instanceof AirDropPeer && ((AirDropPeer) peer).isProbable()) {
+                    holder.statusView.setVisibility(View.VISIBLE);
+                    holder.statusView.setText(R.string.status_probably_nearby);
+                } else {
+                    holder.statusView.setVisibility(View.GONE);
+                }
             }
             if (state.status != 0 && state.status != R.string.status_rejected) {
                 holder.itemView.setEnabled(false);
                 holder.progressBar.setVisibility(View.VISIBLE);
                 holder.cancelButton.setVisibility(View.VISIBLE);
-                if (state.bytesTotal == -1 || state.status != R.string.status_sending) {
-                    holder.progressBar.setIndeterminate(true);
-                } else {
-                    holder.progressBar.setIndeterminate(false);
-                    holder.progressBar.setMax((int) state.bytesTotal);
-                    holder.progressBar.setProgress((int) state.bytesSent, true);
-                }
+                holder.progressBar.setIndeterminate(!isShowingProgress(state));
             } else {
                 holder.itemView.setEnabled(true);
                 holder.progressBar.setVisibility(View.GONE);
@@ -446,9 +517,36 @@ public class MainActivity extends AppCompatActivity implements DiscoverListener
                 holder.iconView.setImageDrawable(null);
             }
             holder.itemView.setOnClickListener(v -> handleItemClick(peer));
+            holder.itemView.setOnLongClickListener(v -> handleItemLongClick(peer));
             holder.cancelButton.setOnClickListener(v -> handleItemCancelClick(peer, state));
         }
 
+        @Override
+        public void onBindViewHolder(@NonNull ViewHolder holder, int position,
+                                     @NonNull List<Object> payloads) {
+            final PeerState state = mPeerStates.get(mPeers.keyAt(position));
+            if (payloads.contains(PAYLOAD_PROGRESS) && state != null && isShowingProgress(state)) {
+                bindProgress(holder, state);
+            } else {
+                onBindViewHolder(holder, position);
+            }
+        }
+
+        private boolean isShowingProgress(PeerState state) {
+            return state.status == R.string.status_sending && state.bytesTotal != -1;
+        }
+
+        private void bindProgress(ViewHolder holder, PeerState state) {
+            holder.statusView.setText(getString(R.string.status_sending_progress,
+                    Formatter.formatFileSize(MainActivity.this, state.bytesSent),
+                    Formatter.formatFileSize(MainActivity.this, state.bytesTotal)));
+            // Byte counts above 2 GiB don't fit the bar, so it is bound as a percentage
+            holder.progressBar.setIndeterminate(false);
+            holder.progressBar.setMax(100);
+            holder.progressBar.setProgress(state.bytesTotal > 0
+                    ? (int) (state.bytesSent * 100 / state.bytesTotal) : 0, true);
+        }
+
         @Override
         public long getItemId(int position) {
             return mPeers.keyAt(position).hashCode();
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.warpshare;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+import okio.Buffer;
+import okio.Sink;
+import okio.Timeout;
+
+/**
+ * A {@link Sink} for a received file whose final size is known up front. The space is
+ * allocated before the first byte is written, so that the file isn't grown by every write,
+ * and data goes to the {@link FileChannel} in large blocks aligned to {@link #ALIGNMENT}.
+ * Everything is synced once, when closed. If fewer bytes than announced arrive, the file is
+ * cut back to what was written.
+ */
+class PreallocatedFileSink implements Sink {
+
+    private static final String TAG = "PreallocatedFileSink";
+
+    static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final int ALIGNMENT = 64 * 1024;
+
+    // One for each file that may be written at once
+    private static final int POOL_MAX_BUFFERS = 4;
+
+    private static final ArrayDeque<ByteBuffer> sPool = new ArrayDeque<>();
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+
+    private final ByteBuffer mBuffer = obtain();
+
+    private final long mSize;
+    private long mPosition;
+
+    private boolean mClosed = false;
+
+    /**
+     * @param offset where writing starts. Anything in the file after it is dropped.
+     * @param size   the final size of the file, or -1 if it is not known
+     */
+    PreallocatedFileSink(File file, long offset, long size) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mSize = size;
+        mPosition = offset;
+
+        try {
+            mChannel.truncate(offset);
+            // What fits in one block goes out in one write anyway
+            if (size - offset > BUFFER_SIZE) {
+                preallocate(file, offset, size);
+            }
+        } catch (IOException e) {
+            mFile.close();
+            recycle(mBuffer);
+            throw e;
+        }
+
+        align();
+    }
+
+    private void preallocate(File file, long offset, long size) throws IOException {
+        try {
+            Os.posix_fallocate(mFile.getFD(), offset, size - offset);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new IOException("No space for " + size + " bytes of " + file.getName(), e);
+            }
+            // Not every filesystem can do this, and writing works all the same without it
+            Log.d(TAG, "Cannot preallocate " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void write(@NonNull Buffer source, long byteCount) throws IOException {
+        if (mClosed) {
+            throw new IllegalStateException("closed");
+        }
+
+        while (byteCount > 0) {
+            final int limit = mBuffer.limit();
+            if (mBuffer.remaining() > byteCount) {
+                mBuffer.limit(mBuffer.position() + (int) byteCount);
+            }
+            byteCount -= source.read(mBuffer);
+            mBuffer.limit(limit);
+
+            if (!mBuffer.hasRemaining()) {
+                drain();
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mPosition += mChannel.write(mBuffer, mPosition);
+        }
+        mBuffer.clear();
+        align();
+    }
+
+    /**
+     * Lets the next block end on a boundary, so that the ones after it start on one
+     */
+    private void align() {
+        mBuffer.limit(BUFFER_SIZE - (int) (mPosition % ALIGNMENT));
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @NonNull
+    @Override
+    public Timeout timeout() {
+        return Timeout.NONE;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+
+        try {
+            drain();
+            if (mSize > mPosition) {
+                mChannel.truncate(mPosition);
+            }
+            mChannel.force(true);
+        } finally {
+            mFile.close();
+            recycle(mBuffer);
+        }
+    }
+
+    private static ByteBuffer obtain() {
+        synchronized (sPool) {
+            final ByteBuffer buffer = sPool.pollFirst();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private static void recycle(ByteBuffer buffer) {
+        buffer.clear();
+        synchronized (sPool) {
+            if (sPool.size() < POOL_MAX_BUFFERS) {
+                sPool.addFirst(buffer);
+            }
+        }
+    }
+
+}
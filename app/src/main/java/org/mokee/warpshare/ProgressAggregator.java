@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.warpshare;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects progress reported by worker threads and publishes it on the main thread at a bounded
+ * rate: never more often than every {@link #MIN_INTERVAL_MS}, and then only once another
+ * {@link #STEP_PERCENT} percent is done or {@link #MAX_INTERVAL_MS} has passed. Completion is
+ * always published. At most one publication is queued at a time.
+ */
+public class ProgressAggregator implements GossipyInputStream.Listener {
+
+    private static final long MIN_INTERVAL_MS = 50;
+    private static final long MAX_INTERVAL_MS = 500;
+    private static final int STEP_PERCENT = 1;
+
+    private final Handler mHandler;
+    private final Callback mCallback;
+
+    private final AtomicLong mBytesDone = new AtomicLong();
+    private volatile long mBytesTotal;
+
+    private final AtomicBoolean mQueued = new AtomicBoolean(false);
+
+    private volatile long mLastPublishedAt = 0;
+    private volatile long mLastPublishedBytes = -1;
+
+    private final Runnable mPublishRunnable = this::publish;
+
+    public ProgressAggregator(long bytesTotal, Callback callback) {
+        this(new Handler(Looper.getMainLooper()), bytesTotal, callback);
+    }
+
+    public ProgressAggregator(Handler handler, long bytesTotal, Callback callback) {
+        mHandler = handler;
+        mBytesTotal = bytesTotal;
+        mCallback = callback;
+    }
+
+    @Override
+    public void onRead(int length) {
+        update(mBytesDone.addAndGet(length));
+    }
+
+    /**
+     * Replaces the progress with absolute values, for sources that report totals themselves.
+     */
+    public void set(long bytesDone, long bytesTotal) {
+        mBytesTotal = bytesTotal;
+        mBytesDone.set(bytesDone);
+        update(bytesDone);
+    }
+
+    private void update(long bytesDone) {
+        final long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        final long elapsed = now - mLastPublishedAt;
+
+        final long total = mBytesTotal;
+        final long last = mLastPublishedBytes;
+
+        // The final update always goes through, so that nothing is left stuck short of 100%
+        final boolean complete = total > 0 && bytesDone >= total;
+        if (elapsed < MIN_INTERVAL_MS && !complete) {
+            return;
+        }
+
+        final boolean due = complete || elapsed >= MAX_INTERVAL_MS
+                || (total > 0 && (bytesDone - last) * 100 >= total * STEP_PERCENT);
+
+        if (due && bytesDone != last && mQueued.compareAndSet(false, true)) {
+            mLastPublishedAt = now;
+            mHandler.post(mPublishRunnable);
+        }
+    }
+
+    private void publish() {
+        mQueued.set(false);
+        final long bytesDone = mBytesDone.get();
+        mLastPublishedBytes = bytesDone;
+        mCallback.onProgress(bytesDone, mBytesTotal);
+    }
+
+    public interface Callback {
+
+        void onProgress(long bytesDone, long bytesTotal);
+
+    }
+
+}
@@ -37,6 +37,7 @@ import androidx.annotation.Nullable;
 
 import org.mokee.warpshare.airdrop.AirDropManager;
 import org.mokee.warpshare.airdrop.AirDropManager.ReceivingSession;
+import org.mokee.warpshare.base.TransferScheduler;
 
 import java.io.File;
 import java.io.IOException;
@@ -47,9 +48,11 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import okio.BufferedSink;
 import okio.Okio;
+import okio.Sink;
 import okio.Source;
 
 import static android.app.Notification.CATEGORY_SERVICE;
@@ -62,6 +65,8 @@ import static android.bluetooth.le.ScanSettings.CALLBACK_TYPE_FIRST_MATCH;
 import static android.bluetooth.le.ScanSettings.CALLBACK_TYPE_MATCH_LOST;
 import static androidx.core.content.FileProvider.getUriForFile;
 import static org.mokee.warpshare.airdrop.AirDropManager.STATUS_OK;
+import static org.mokee.warpshare.base.TransferScheduler.LANE_IO;
+import static org.mokee.warpshare.base.TransferScheduler.PRIORITY_BACKGROUND;
 
 public class ReceiverService extends Service implements AirDropManager.ReceiverListener {
 
@@ -76,6 +81,12 @@ public class ReceiverService extends Service implements AirDropManager.ReceiverL
     private static final String NOTIFICATION_CHANNEL_SERVICE = "receiver";
     private static final String NOTIFICATION_CHANNEL_TRANSFER = "transfer";
 
+    // Below the downloads, so that finished files can be moved out in one rename
+    private static final String STAGING_DIR = ".warpshare";
+
+    // As long as the sender may come back to resume
+    private static final long STAGING_MAX_AGE_MS = TimeUnit.DAYS.toMillis(1);
+
     private static final int NOTIFICATION_ACTIVE = 1;
     private static final int NOTIFICATION_TRANSFER = 2;
 
@@ -83,6 +94,8 @@ public class ReceiverService extends Service implements AirDropManager.ReceiverL
 
     private final Map<String, ReceivingSession> mSessions = new HashMap<>();
 
+    private final Map<String, TransferProgressNotifier> mProgressNotifiers = new HashMap<>();
+
     private boolean mRunning = false;
 
     private PartialWakeLock mWakeLock;
@@ -140,8 +153,11 @@ public class ReceiverService extends Service implements AirDropManager.ReceiverL
 
         mWakeLock = new PartialWakeLock(this, TAG);
 
-        mAirDropManager = new AirDropManager(this,
-                WarpShareApplication.from(this).getCertificateManager());
+        // Files left half written by a crash or an upload that was never resumed
+        TransferScheduler.getInstance().execute(LANE_IO, PRIORITY_BACKGROUND, null, () ->
+                sweepStaged(getStagingDir(), System.currentTimeMillis() - STAGING_MAX_AGE_MS));
+
+        mAirDropManager = WarpShareApplication.from(this).acquireAirDropManager();
 
         mWifiStateMonitor.register(this);
         mBluetoothStateMonitor.register(this);
@@ -180,7 +196,11 @@ public class ReceiverService extends Service implements AirDropManager.ReceiverL
     public void onDestroy() {
         super.onDestroy();
         Log.d(TAG, "onDestroy");
-        mAirDropManager.destroy();
+        if (mRunning) {
+            mAirDropManager.stopDiscoverable();
+            mRunning = false;
+        }
+        WarpShareApplication.from(this).releaseAirDropManager();
 
         mWifiStateMonitor.unregister(this);
         mBluetoothStateMonitor.unregister(this);
@@ -264,6 +284,13 @@ public class ReceiverService extends Service implements AirDropManager.ReceiverL
 
         mSessions.put(session.ip, session);
 
+        if (session.isResuming()) {
+            Log.d(TAG, "Resuming without asking again");
+            mWakeLock.acquire();
+            handleTransferAccept(session.ip);
+            return;
+        }
+
         final Notification.Builder builder = getNotificationBuilder(NOTIFICATION_CHANNEL_TRANSFER, CATEGORY_STATUS)
                 .setContentTitle(getString(R.string.notif_recv_transfer_request_title))
                 .setContentText(getResources().getQuantityString(
@@ -328,21 +355,65 @@ public class ReceiverService extends Service implements AirDropManager.ReceiverL
     }
 
     @Override
-    public void onAirDropTransfer(ReceivingSession session, String fileName, InputStream input) {
+    public void onAirDropTransfer(ReceivingSession session, String fileName, InputStream input,
+                                  long offset, long size) {
         Log.d(TAG, "Transferring " + fileName + " from " + session.name);
         final String targetFileName = session.getFileName(fileName);
         final File downloadDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
         final File file = new File(downloadDir, targetFileName);
-        try {
-            final Source source = Okio.source(input);
-            final BufferedSink sink = Okio.buffer(Okio.sink(file));
+
+        // Only complete files show up in the downloads
+        final File staged = new File(getStagingDir(), targetFileName);
+        if (!ensureParent(staged)) {
+            return;
+        }
+
+        // The input is the archive itself, so it stays open for the files after this one
+        final Source source = Okio.source(input);
+        try (final BufferedSink sink = Okio.buffer(openSink(staged, offset, size))) {
             sink.writeAll(source);
-            sink.flush();
-            sink.close();
-            Log.d(TAG, "Received " + fileName + " as " + targetFileName);
         } catch (IOException e) {
-            Log.e(TAG, "Failed writing file to " + file.getAbsolutePath(), e);
+            Log.e(TAG, "Failed writing file to " + staged.getAbsolutePath(), e);
+            return;
+        }
+
+        if (size != -1 && staged.length() != size) {
+            Log.w(TAG, "Received " + staged.length() + " of " + size + " bytes of " + fileName);
+            return;
+        }
+
+        if (!ensureParent(file)) {
+            return;
         }
+        if (!staged.renameTo(file)) {
+            Log.e(TAG, "Failed moving " + staged.getAbsolutePath() + " to " + file.getAbsolutePath());
+            return;
+        }
+
+        Log.d(TAG, "Received " + fileName + " as " + targetFileName);
+    }
+
+    private boolean ensureParent(File file) {
+        final File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            Log.e(TAG, "Failed creating directory " + parent.getAbsolutePath());
+            return false;
+        }
+        return true;
+    }
+
+    private Sink openSink(File file, long offset, long size) throws IOException {
+        if (offset > 0) {
+            if (file.length() < offset) {
+                throw new IOException("Cannot resume at " + offset + ", only "
+                        + file.length() + " bytes were kept");
+            }
+
+            // Bytes after the offset were written but not yet journaled, and are sent again
+            Log.d(TAG, "Resuming " + file.getName() + " at " + offset);
+        }
+
+        return new PreallocatedFileSink(file, offset, size);
     }
 
     private void handleTransferCancel(String ip) {
@@ -350,6 +421,7 @@ public class ReceiverService extends Service implements AirDropManager.ReceiverL
         if (session != null) {
             session.cancel();
         }
+        removeProgressNotifier(ip);
         mNotificationManager.cancel(ip, NOTIFICATION_TRANSFER);
         mWakeLock.release();
     }
@@ -358,27 +430,38 @@ public class ReceiverService extends Service implements AirDropManager.ReceiverL
     public void onAirDropTransferProgress(ReceivingSession session, String fileName,
                                           long bytesReceived, long bytesTotal,
                                           int index, int count) {
-        mNotificationManager.notify(session.ip, NOTIFICATION_TRANSFER,
-                getNotificationBuilder(NOTIFICATION_CHANNEL_TRANSFER, CATEGORY_STATUS)
-                        .setContentTitle(getResources().getQuantityString(
-                                R.plurals.notif_recv_transfer_progress_title, session.paths.size(),
-                                session.paths.size(), session.name))
-                        .setContentText(getString(R.string.notif_recv_transfer_progress_desc,
-                                index + 1, count))
-                        .setProgress((int) bytesTotal, (int) bytesReceived, false)
-                        .addAction(new Notification.Action.Builder(null,
-                                getString(R.string.notif_recv_transfer_progress_cancel),
-                                getTransferIntent(ACTION_TRANSFER_CANCEL, session.ip))
-                                .build())
-                        .setOngoing(true)
-                        .setOnlyAlertOnce(true)
-                        .build());
+        TransferProgressNotifier notifier = mProgressNotifiers.get(session.ip);
+        if (notifier == null) {
+            notifier = new TransferProgressNotifier(this, mNotificationManager,
+                    session.ip, NOTIFICATION_TRANSFER,
+                    getNotificationBuilder(NOTIFICATION_CHANNEL_TRANSFER, CATEGORY_STATUS)
+                            .setContentTitle(getResources().getQuantityString(
+                                    R.plurals.notif_recv_transfer_progress_title, session.paths.size(),
+                                    session.paths.size(), session.name))
+                            .addAction(new Notification.Action.Builder(null,
+                                    getString(R.string.notif_recv_transfer_progress_cancel),
+                                    getTransferIntent(ACTION_TRANSFER_CANCEL, session.ip))
+                                    .build())
+                            .setOngoing(true)
+                            .setOnlyAlertOnce(true));
+            mProgressNotifiers.put(session.ip, notifier);
+        }
+        notifier.update(index, count, bytesReceived, bytesTotal);
+    }
+
+    private void removeProgressNotifier(String ip) {
+        final TransferProgressNotifier notifier = mProgressNotifiers.remove(ip);
+        if (notifier != null) {
+            Log.d(TAG, "Posted " + notifier.getNotifyCount() + " progress notifications for "
+                    + notifier.getUpdateCount() + " updates");
+        }
     }
 
     @Override
     public void onAirDropTransferDone(ReceivingSession session) {
         Log.d(TAG, "All files received");
 
+        removeProgressNotifier(session.ip);
         mNotificationManager.cancel(session.ip, NOTIFICATION_TRANSFER);
 
         final Intent shareIntent;
@@ -426,6 +509,8 @@ public class ReceiverService extends Service implements AirDropManager.ReceiverL
 
         mSessions.remove(session.ip);
 
+        discardStaged(session);
+
         mWakeLock.release();
     }
 
@@ -433,6 +518,7 @@ public class ReceiverService extends Service implements AirDropManager.ReceiverL
     public void onAirDropTransferFailed(ReceivingSession session) {
         Log.d(TAG, "Receiving aborted");
 
+        removeProgressNotifier(session.ip);
         mNotificationManager.cancel(session.ip, NOTIFICATION_TRANSFER);
 
         mNotificationManager.notify(session.ip, NOTIFICATION_TRANSFER,
@@ -444,9 +530,71 @@ public class ReceiverService extends Service implements AirDropManager.ReceiverL
 
         mSessions.remove(session.ip);
 
+        if (!session.isResumable()) {
+            discardStaged(session);
+        }
+
         mWakeLock.release();
     }
 
+    private File getStagingDir() {
+        final File downloadDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+        return new File(downloadDir, STAGING_DIR);
+    }
+
+    /**
+     * Removes what is left of {@code session} in the staging directory, which once done is
+     * no more than the directories files were moved out of
+     */
+    private void discardStaged(ReceivingSession session) {
+        final File stagingDir = getStagingDir();
+        final List<File> staged = new ArrayList<>();
+        for (String path : session.paths) {
+            staged.add(new File(stagingDir, session.getFileName(path)));
+        }
+
+        TransferScheduler.getInstance().execute(LANE_IO, PRIORITY_BACKGROUND, null, () -> {
+            for (File file : staged) {
+                deleteRecursively(file);
+            }
+        });
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Failed deleting " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Deletes files below {@code dir} last written before {@code before}, and directories
+     * that end up empty
+     */
+    private static void sweepStaged(File dir, long before) {
+        final File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            if (child.isDirectory()) {
+                sweepStaged(child, before);
+                final String[] left = child.list();
+                if (left != null && left.length == 0 && child.delete()) {
+                    Log.d(TAG, "Swept " + child.getAbsolutePath());
+                }
+            } else if (child.lastModified() < before && child.delete()) {
+                Log.d(TAG, "Swept " + child.getAbsolutePath());
+            }
+        }
+    }
+
     private PendingIntent getTransferIntent(String action, String ip) {
         return PendingIntent.getForegroundService(this, 0,
                 new Intent(action, null, this, getClass())
@@ -81,8 +81,7 @@ public class SetupActivity extends AppCompatActivity {
         mGroupBt = findViewById(R.id.group_bt);
         findViewById(R.id.bt).setOnClickListener(v -> turnOnBluetooth());
 
-        mAirDropManager = new AirDropManager(this,
-                WarpShareApplication.from(this).getCertificateManager());
+        mAirDropManager = WarpShareApplication.from(this).acquireAirDropManager();
 
         mWifiStateMonitor.register(this);
         mBluetoothStateMonitor.register(this);
@@ -95,7 +94,7 @@ public class SetupActivity extends AppCompatActivity {
         mWifiStateMonitor.unregister(this);
         mBluetoothStateMonitor.unregister(this);
 
-        mAirDropManager.destroy();
+        WarpShareApplication.from(this).releaseAirDropManager();
     }
 
     @Override
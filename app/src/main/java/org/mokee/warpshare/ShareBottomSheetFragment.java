@@ -21,7 +21,9 @@ import android.content.ClipData;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.text.format.Formatter;
 import android.util.ArrayMap;
 import android.util.Log;
@@ -44,6 +46,7 @@ import org.mokee.warpshare.airdrop.AirDropManager;
 import org.mokee.warpshare.airdrop.AirDropPeer;
 import org.mokee.warpshare.base.DiscoverListener;
 import org.mokee.warpshare.base.Entity;
+import org.mokee.warpshare.base.EntityResolver;
 import org.mokee.warpshare.base.Peer;
 import org.mokee.warpshare.base.SendListener;
 import org.mokee.warpshare.base.SendingSession;
@@ -63,11 +66,17 @@ public class ShareBottomSheetFragment extends BottomSheetDialogFragment
 
     private static final String TAG = "ShareBottomSheetFragment";
 
+    // Rebinds only the status text and progress bar of a row
+    private static final Object PAYLOAD_PROGRESS = new Object();
+
     private static final int REQUEST_SETUP = 1;
 
     private final ArrayMap<String, Peer> mPeers = new ArrayMap<>();
     private final List<Entity> mEntities = new ArrayList<>();
 
+    private boolean mEntitiesResolved = false;
+    private boolean mSendOnResolved = false;
+
     private ShareActivity mParent;
 
     private PeersAdapter mAdapter;
@@ -103,6 +112,11 @@ public class ShareBottomSheetFragment extends BottomSheetDialogFragment
     };
 
     private boolean mIsDiscovering = false;
+
+    // For timing how long it takes to show the first peer, with or without a running stack
+    private boolean mAirDropWarm = false;
+    private long mCreatedAt = 0;
+    private boolean mFirstPeerFound = false;
     private boolean mShouldKeepDiscovering = false;
 
     private SendingSession mSending;
@@ -113,9 +127,11 @@ public class ShareBottomSheetFragment extends BottomSheetDialogFragment
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreatedAt = SystemClock.elapsedRealtime();
         mWakeLock = new PartialWakeLock(getContext(), TAG);
-        mAirDropManager = new AirDropManager(getContext(),
-                WarpShareApplication.from(getContext()).getCertificateManager());
+        final WarpShareApplication application = WarpShareApplication.from(getContext());
+        mAirDropWarm = application.isAirDropManagerWarm();
+        mAirDropManager = application.acquireAirDropManager();
         mNearShareManager = new NearShareManager(getContext());
         mAdapter = new PeersAdapter(getContext());
     }
@@ -123,7 +139,10 @@ public class ShareBottomSheetFragment extends BottomSheetDialogFragment
     @Override
     public void onDestroy() {
         super.onDestroy();
-        mAirDropManager.destroy();
+        if (mIsDiscovering) {
+            mAirDropManager.stopDiscover(this);
+        }
+        WarpShareApplication.from(getContext()).releaseAirDropManager();
         mNearShareManager.destroy();
     }
 
@@ -148,39 +167,61 @@ public class ShareBottomSheetFragment extends BottomSheetDialogFragment
         peersView.setAdapter(mAdapter);
 
         mSendButton = view.findViewById(R.id.send);
-        mSendButton.setOnClickListener(v -> sendFile(mPeers.get(mPeerPicked), mEntities));
+        mSendButton.setOnClickListener(v -> {
+            if (mEntitiesResolved) {
+                sendFile(mPeers.get(mPeerPicked), mEntities);
+            } else {
+                mSendOnResolved = true;
+                mSendButton.setEnabled(false);
+            }
+        });
 
         mDiscoveringView = view.findViewById(R.id.discovering);
 
         final String type = mParent.getIntent().getType();
         final ClipData clipData = mParent.getIntent().getClipData();
+        final List<Uri> uris = new ArrayList<>();
         if (clipData != null) {
             for (int i = 0; i < clipData.getItemCount(); i++) {
-                final Entity entity = new Entity(getContext(), clipData.getItemAt(i).getUri(), type);
-                if (entity.ok()) {
-                    mEntities.add(entity);
-                }
+                uris.add(clipData.getItemAt(i).getUri());
             }
         } else {
-            final Entity entity = new Entity(getContext(), mParent.getIntent().getData(), type);
-            if (entity.ok()) {
-                mEntities.add(entity);
-            }
+            uris.add(mParent.getIntent().getData());
         }
 
-        final int count = mEntities.size();
-        final String titleText = getResources().getQuantityString(R.plurals.send_files_to, count, count);
-        final TextView titleView = view.findViewById(R.id.title);
-        titleView.setText(titleText);
+        updateTitle(view, uris.size());
+
+        new EntityResolver(getContext()).resolve(uris, type, this::handleEntitiesResolved);
+    }
+
+    private void handleEntitiesResolved(List<Entity> entities) {
+        final View view = getView();
+        if (view == null) {
+            return;
+        }
+
+        mEntities.addAll(entities);
+        mEntitiesResolved = true;
+
+        updateTitle(view, mEntities.size());
 
         if (mEntities.isEmpty()) {
             Log.w(TAG, "No file was selected");
             Toast.makeText(getContext(), R.string.toast_no_file, Toast.LENGTH_SHORT).show();
             handleSendFailed();
             mParent.finish();
+        } else if (mSendOnResolved) {
+            mSendOnResolved = false;
+            sendFile(mPeers.get(mPeerPicked), mEntities);
         }
     }
 
+    private void updateTitle(View view, int count) {
+        final String titleText = getResources().getQuantityString(R.plurals.send_files_to, count, count);
+        final TextView titleView = view.findViewById(R.id.title);
+        titleView.setText(titleText);
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -204,8 +245,8 @@ public class ShareBottomSheetFragment extends BottomSheetDialogFragment
         super.onPause();
 
         if (mIsDiscovering && !mShouldKeepDiscovering) {
-            mAirDropManager.stopDiscover();
-            mNearShareManager.stopDiscover();
+            mAirDropManager.stopDiscover(this);
+            mNearShareManager.stopDiscover(this);
             mIsDiscovering = false;
         }
 
@@ -240,8 +281,16 @@ public class ShareBottomSheetFragment extends BottomSheetDialogFragment
     @Override
     public void onPeerFound(Peer peer) {
         Log.d(TAG, "Found: " + peer.id + " (" + peer.name + ")");
-        mPeers.put(peer.id, peer);
-        mAdapter.notifyDataSetChanged();
+        if (!mFirstPeerFound) {
+            mFirstPeerFound = true;
+            Log.d(TAG, "First peer found " + (SystemClock.elapsedRealtime() - mCreatedAt)
+                    + " ms after opening, AirDrop " + (mAirDropWarm ? "warm" : "cold"));
+        }
+        if (mPeers.put(peer.id, peer) == null) {
+            mAdapter.notifyItemInserted(mPeers.indexOfKey(peer.id));
+        } else {
+            notifyPeerChanged(peer.id, null);
+        }
     }
 
     @Override
@@ -250,8 +299,18 @@ public class ShareBottomSheetFragment extends BottomSheetDialogFragment
         if (peer.id.equals(mPeerPicked)) {
             mPeerPicked = null;
         }
-        mPeers.remove(peer.id);
-        mAdapter.notifyDataSetChanged();
+        final int index = mPeers.indexOfKey(peer.id);
+        if (index >= 0) {
+            mPeers.removeAt(index);
+            mAdapter.notifyItemRemoved(index);
+        }
+    }
+
+    private void notifyPeerChanged(String id, Object payload) {
+        final int index = id == null ? -1 : mPeers.indexOfKey(id);
+        if (index >= 0) {
+            mAdapter.notifyItemChanged(index, payload);
+        }
     }
 
     private boolean setupIfNeeded() {
@@ -275,21 +334,31 @@ public class ShareBottomSheetFragment extends BottomSheetDialogFragment
             return;
         }
         mPeerStatus = 0;
+        notifyPeerChanged(mPeerPicked, null);
         if (peer.id.equals(mPeerPicked)) {
             mPeerPicked = null;
             mSendButton.setEnabled(false);
         } else {
             mPeerPicked = peer.id;
             mSendButton.setEnabled(true);
+            notifyPeerChanged(mPeerPicked, null);
+            prepare(peer);
+        }
+    }
+
+    private void prepare(Peer peer) {
+        if (peer instanceof AirDropPeer) {
+            mAirDropManager.prepare((AirDropPeer) peer);
+        } else if (peer instanceof NearSharePeer) {
+            mNearShareManager.prepare((NearSharePeer) peer);
         }
-        mAdapter.notifyDataSetChanged();
     }
 
     private void handleSendConfirming() {
         mPeerStatus = R.string.status_waiting_for_confirm;
         mBytesTotal = -1;
         mBytesSent = 0;
-        mAdapter.notifyDataSetChanged();
+        notifyPeerChanged(mPeerPicked, null);
         mSendButton.setEnabled(false);
         mDiscoveringView.setVisibility(View.GONE);
         mShouldKeepDiscovering = true;
@@ -299,7 +368,7 @@ public class ShareBottomSheetFragment extends BottomSheetDialogFragment
     private void handleSendRejected() {
         mSending = null;
         mPeerStatus = R.string.status_rejected;
-        mAdapter.notifyDataSetChanged();
+        notifyPeerChanged(mPeerPicked, null);
         mSendButton.setEnabled(true);
         mDiscoveringView.setVisibility(View.VISIBLE);
         mShouldKeepDiscovering = false;
@@ -309,7 +378,7 @@ public class ShareBottomSheetFragment extends BottomSheetDialogFragment
 
     private void handleSending() {
         mPeerStatus = R.string.status_sending;
-        mAdapter.notifyDataSetChanged();
+        notifyPeerChanged(mPeerPicked, null);
     }
 
     private void handleSendSucceed() {
@@ -323,9 +392,9 @@ public class ShareBottomSheetFragment extends BottomSheetDialogFragment
 
     private void handleSendFailed() {
         mSending = null;
+        notifyPeerChanged(mPeerPicked, null);
         mPeerPicked = null;
         mPeerStatus = 0;
-        mAdapter.notifyDataSetChanged();
         mSendButton.setEnabled(true);
         mDiscoveringView.setVisibility(View.VISIBLE);
         mShouldKeepDiscovering = false;
@@ -350,7 +419,7 @@ public class ShareBottomSheetFragment extends BottomSheetDialogFragment
             public void onProgress(long bytesSent, long bytesTotal) {
                 mBytesSent = bytesSent;
                 mBytesTotal = bytesTotal;
-                mAdapter.notifyDataSetChanged();
+                notifyPeerChanged(mPeerPicked, PAYLOAD_PROGRESS);
             }
 
             @Override
@@ -395,25 +464,20 @@ public class ShareBottomSheetFragment extends BottomSheetDialogFragment
             holder.itemView.setSelected(selected);
             if (selected && mPeerStatus != 0) {
                 holder.statusView.setVisibility(View.VISIBLE);
-                if (mPeerStatus == R.string.status_sending && mBytesTotal != -1) {
-                    holder.statusView.setText(getString(R.string.status_sending_progress,
-                            Formatter.formatFileSize(mParent, mBytesSent),
-                            Formatter.formatFileSize(mParent, mBytesTotal)));
+                if (isShowingProgress()) {
+                    bindProgress(holder);
                 } else {
                     holder.statusView.setText(mPeerStatus);
                 }
+            } else if (peer instanceof AirDropPeer && ((AirDropPeer) peer).isProbable()) {
+                holder.statusView.setVisibility(View.VISIBLE);
+                holder.statusView.setText(R.string.status_probably_nearby);
             } else {
                 holder.statusView.setVisibility(View.GONE);
             }
             if (selected && mPeerStatus != 0 && mPeerStatus != R.string.status_rejected) {
                 holder.progressBar.setVisibility(View.VISIBLE);
-                if (mBytesTotal == -1 || mPeerStatus != R.string.status_sending) {
-                    holder.progressBar.setIndeterminate(true);
-                } else {
-                    holder.progressBar.setIndeterminate(false);
-                    holder.progressBar.setMax((int) mBytesTotal);
-                    holder.progressBar.setProgress((int) mBytesSent, true);
-                }
+                holder.progressBar.setIndeterminate(!isShowingProgress());
             } else {
                 holder.progressBar.setVisibility(View.GONE);
             }
@@ -432,6 +496,31 @@ public class ShareBottomSheetFragment extends BottomSheetDialogFragment
             holder.itemView.setOnClickListener(v -> handleItemClick(peer));
         }
 
+        @Override
+        public void onBindViewHolder(@NonNull PeersAdapter.ViewHolder holder, int position,
+                                     @NonNull List<Object> payloads) {
+            if (payloads.contains(PAYLOAD_PROGRESS) && isShowingProgress()) {
+                bindProgress(holder);
+            } else {
+                onBindViewHolder(holder, position);
+            }
+        }
+
+        private boolean isShowingProgress() {
+            return mPeerStatus == R.string.status_sending && mBytesTotal != -1;
+        }
+
+        private void bindProgress(PeersAdapter.ViewHolder holder) {
+            holder.statusView.setText(getString(R.string.status_sending_progress,
+                    Formatter.formatFileSize(mParent, mBytesSent),
+                    Formatter.formatFileSize(mParent, mBytesTotal)));
+            // Byte counts above 2 GiB don't fit the bar, so it is bound as a percentage
+            holder.progressBar.setIndeterminate(false);
+            holder.progressBar.setMax(100);
+            holder.progressBar.setProgress(mBytesTotal > 0
+                    ? (int) (mBytesSent * 100 / mBytesTotal) : 0, true);
+        }
+
         @Override
         public long getItemId(int position) {
             return mPeers.keyAt(position).hashCode();
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mokee.warpshare;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.SystemClock;
+
+/**
+ * Keeps the progress notification of one transfer up to date without flooding the notification
+ * service. The builder is set up once and reused, and the notification is only posted again when
+ * what it shows has changed, that is the file number or the whole percentage, and no sooner than
+ * {@link #MIN_INTERVAL_MS} after the last post.
+ */
+class TransferProgressNotifier {
+
+    private static final long MIN_INTERVAL_MS = 500;
+
+    private final Context mContext;
+    private final NotificationManager mNotificationManager;
+    private final String mTag;
+    private final int mId;
+    private final Notification.Builder mBuilder;
+
+    private int mIndex = -1;
+    private int mPercent = -1;
+    private long mLastNotifiedAt = 0;
+
+    private int mNotifyCount = 0;
+    private int mUpdateCount = 0;
+
+    TransferProgressNotifier(Context context, NotificationManager notificationManager,
+                             String tag, int id, Notification.Builder builder) {
+        mContext = context;
+        mNotificationManager = notificationManager;
+        mTag = tag;
+        mId = id;
+        mBuilder = builder;
+    }
+
+    void update(int index, int count, long bytesDone, long bytesTotal) {
+        mUpdateCount++;
+
+        final int percent = bytesTotal > 0 ? (int) (bytesDone * 100 / bytesTotal) : 0;
+        if (index == mIndex && percent == mPercent) {
+            return;
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+        if (mNotifyCount > 0 && now - mLastNotifiedAt < MIN_INTERVAL_MS) {
+            return;
+        }
+
+        if (index != mIndex) {
+            mBuilder.setContentText(mContext.getString(R.string.notif_recv_transfer_progress_desc,
+                    index + 1, count));
+        }
+        mBuilder.setProgress(100, percent, false);
+
+        mIndex = index;
+        mPercent = percent;
+        mLastNotifiedAt = now;
+        mNotifyCount++;
+
+        mNotificationManager.notify(mTag, mId, mBuilder.build());
+    }
+
+    /**
+     * @return how many times the notification has been posted
+     */
+    int getNotifyCount() {
+        return mNotifyCount;
+    }
+
+    /**
+     * @return how many progress updates have been handed in, posted or not
+     */
+    int getUpdateCount() {
+        return mUpdateCount;
+    }
+
+}
@@ -18,13 +18,42 @@ package org.mokee.warpshare;
 
 import android.app.Application;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 
 import com.mokee.warpshare.CertificateManager;
 
+import org.mokee.warpshare.airdrop.AirDropManager;
+
 public class WarpShareApplication extends Application {
 
+    private static final String TAG = "WarpShareApplication";
+
+    // How long the AirDrop stack is kept around after its last user is gone
+    private static final long AIRDROP_IDLE_TIMEOUT_MS = 60 * 1000;
+
     private CertificateManager mCertificateManager;
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private AirDropManager mAirDropManager;
+    private int mAirDropManagerRefs = 0;
+
+    private final Runnable mDestroyAirDropManager = new Runnable() {
+        @Override
+        public void run() {
+            if (mAirDropManager.hasActiveSends()) {
+                // A send goes on after the screen it was started from is gone
+                mHandler.postDelayed(this, AIRDROP_IDLE_TIMEOUT_MS);
+                return;
+            }
+            Log.d(TAG, "Destroying idle AirDrop manager");
+            mAirDropManager.destroy();
+            mAirDropManager = null;
+        }
+    };
+
     static WarpShareApplication from(Context context) {
         return (WarpShareApplication) context.getApplicationContext();
     }
@@ -41,4 +70,34 @@ public class WarpShareApplication extends Application {
         return mCertificateManager;
     }
 
+    /**
+     * Hands out the process-wide {@link AirDropManager}, creating it if needed. Every call must
+     * be paired with {@link #releaseAirDropManager()}. Main thread only.
+     */
+    AirDropManager acquireAirDropManager() {
+        mHandler.removeCallbacks(mDestroyAirDropManager);
+        if (mAirDropManager == null) {
+            mAirDropManager = new AirDropManager(this, mCertificateManager);
+        }
+        mAirDropManagerRefs++;
+        return mAirDropManager;
+    }
+
+    void releaseAirDropManager() {
+        if (mAirDropManagerRefs == 0) {
+            throw new IllegalStateException("AirDrop manager released more often than acquired");
+        }
+        mAirDropManagerRefs--;
+        if (mAirDropManagerRefs == 0) {
+            mHandler.postDelayed(mDestroyAirDropManager, AIRDROP_IDLE_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * @return whether an {@link AirDropManager} is up, so that acquiring it costs nothing
+     */
+    boolean isAirDropManagerWarm() {
+        return mAirDropManager != null;
+    }
+
 }
@@ -16,77 +16,283 @@
 
 package org.mokee.warpshare.airdrop;
 
-import org.apache.commons.compress.archivers.cpio.CpioArchiveEntry;
-import org.apache.commons.compress.archivers.cpio.CpioArchiveInputStream;
-import org.apache.commons.compress.archivers.cpio.CpioArchiveOutputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.mokee.warpshare.GossipyInputStream;
+import org.mokee.warpshare.base.DirectoryEntity;
 import org.mokee.warpshare.base.Entity;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
+import okio.BufferedSink;
 import okio.BufferedSource;
-import okio.ByteString;
 import okio.Okio;
 
 import static org.apache.commons.compress.archivers.cpio.CpioConstants.C_IRGRP;
 import static org.apache.commons.compress.archivers.cpio.CpioConstants.C_IROTH;
 import static org.apache.commons.compress.archivers.cpio.CpioConstants.C_IRUSR;
+import static org.apache.commons.compress.archivers.cpio.CpioConstants.C_ISDIR;
 import static org.apache.commons.compress.archivers.cpio.CpioConstants.C_ISREG;
 import static org.apache.commons.compress.archivers.cpio.CpioConstants.C_IWUSR;
-import static org.apache.commons.compress.archivers.cpio.CpioConstants.FORMAT_OLD_ASCII;
+import static org.apache.commons.compress.archivers.cpio.CpioConstants.C_IXGRP;
+import static org.apache.commons.compress.archivers.cpio.CpioConstants.C_IXOTH;
+import static org.apache.commons.compress.archivers.cpio.CpioConstants.C_IXUSR;
 
 class AirDropArchiveUtil {
 
+    private static final int FILE_MODE = C_ISREG | C_IRUSR | C_IWUSR | C_IRGRP | C_IROTH;
+    private static final int DIRECTORY_MODE = C_ISDIR | C_IRUSR | C_IWUSR | C_IXUSR
+            | C_IRGRP | C_IXGRP | C_IROTH | C_IXOTH;
+
+    private static final int PROBE_SIZE = 4096;
+
+    // Bits per byte above which a sample is treated as already compressed
+    private static final double PROBE_MAX_ENTROPY = 7.5;
+
+    // Entities of unknown size up to this long are measured in memory, longer ones on disk
+    private static final long SPILL_THRESHOLD = 4 * 1024 * 1024;
+
+    /**
+     * @param compressExecutor    if not null, deflate blocks of the archive on this executor with
+     *                            up to {@code compressThreads} of them in flight
+     * @param adaptiveCompression store entities that look already compressed instead of
+     *                            deflating them again
+     * @param resume              if not null, leave out what the peer already has. Skipped
+     *                            bytes are reported to {@code streamReadListener} as if read.
+     */
     static void pack(List<Entity> entities, OutputStream output,
-                     GossipyInputStream.Listener streamReadListener) throws IOException {
-        try (final GzipCompressorOutputStream gzip = new GzipCompressorOutputStream(output);
-             final CpioArchiveOutputStream cpio = new CpioArchiveOutputStream(gzip, FORMAT_OLD_ASCII)) {
-            for (Entity entity : entities) {
-                final CpioArchiveEntry entry = new CpioArchiveEntry(FORMAT_OLD_ASCII, entity.path());
-                entry.setMode(C_ISREG | C_IRUSR | C_IWUSR | C_IRGRP | C_IROTH);
-                entry.setTime(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
-
-                final InputStream stream = new GossipyInputStream(entity.stream(), streamReadListener);
-                final BufferedSource source = Okio.buffer(Okio.source(stream));
-                final long size = entity.size();
-                if (size == -1) {
-                    final ByteString content = source.readByteString();
-                    entry.setSize(content.size());
-                    cpio.putArchiveEntry(entry);
-                    content.write(cpio);
+                     GossipyInputStream.Listener streamReadListener,
+                     Executor compressExecutor, int compressThreads,
+                     boolean adaptiveCompression, ResumePoint resume) throws IOException {
+        final AirDropGzipOutputStream blockGzip = compressExecutor != null || adaptiveCompression
+                ? new AirDropGzipOutputStream(output, compressExecutor, compressThreads)
+                : null;
+        try (final OutputStream gzip = blockGzip != null ? blockGzip
+                : new GzipCompressorOutputStream(output);
+             final AirDropCpioOutputStream cpio = new AirDropCpioOutputStream(gzip)) {
+            final AirDropGzipOutputStream adaptiveGzip = adaptiveCompression ? blockGzip : null;
+            try {
+                for (Entity entity : entities) {
+                    if (entity instanceof DirectoryEntity) {
+                        ((DirectoryEntity) entity).walk(new DirectoryEntity.Visitor() {
+                            @Override
+                            public void onDirectory(String path) throws IOException {
+                                cpio.putEntry(path, DIRECTORY_MODE, now(), 0);
+                                cpio.closeEntry();
+                            }
+
+                            @Override
+                            public void onFile(Entity file) throws IOException {
+                                packFile(file, cpio, adaptiveGzip, streamReadListener, resume);
+                            }
+                        });
+                    } else {
+                        packFile(entity, cpio, adaptiveGzip, streamReadListener, resume);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // Leave the trailer out, so that the peer can't take this for all of it
+                cpio.abort();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @param adaptiveGzip if not null, pick a compression level for this file on it
+     */
+    private static void packFile(Entity entity, AirDropCpioOutputStream cpio,
+                                 AirDropGzipOutputStream adaptiveGzip,
+                                 GossipyInputStream.Listener streamReadListener,
+                                 ResumePoint resume) throws IOException {
+        final String name = entity.path();
+        final long time = now();
+
+        if (resume != null && resume.completed.contains(name)) {
+            reportSkipped(streamReadListener, Math.max(entity.size(), 0));
+            return;
+        }
+
+        final long offset = resume != null && name.equals(resume.partial) ? resume.offset : 0;
+
+        final InputStream input = entity.stream();
+        if (offset > 0) {
+            try {
+                skipFully(input, offset, name);
+            } catch (IOException e) {
+                input.close();
+                throw e;
+            }
+            reportSkipped(streamReadListener, offset);
+        }
+
+        final InputStream stream = new GossipyInputStream(input, streamReadListener);
+        try (final BufferedSource source = Okio.buffer(Okio.source(stream))) {
+            final long size = entity.size() == -1 ? -1 : entity.size() - offset;
+
+            if (adaptiveGzip != null) {
+                final boolean store = AirDropTypes.isCompressed(entity) || looksCompressed(source);
+                adaptiveGzip.setLevel(store ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+            }
+
+            if (size == -1) {
+                if (source.request(SPILL_THRESHOLD + 1)) {
+                    spill(source, name, time, cpio);
                 } else {
-                    entry.setSize(size);
-                    cpio.putArchiveEntry(entry);
+                    cpio.putEntry(name, FILE_MODE, time, source.getBuffer().size());
                     source.readAll(Okio.sink(cpio));
                 }
+            } else {
+                cpio.putEntry(name, FILE_MODE, time, size);
+                source.readAll(Okio.sink(cpio));
+            }
+        }
+
+        cpio.closeEntry();
+    }
+
+    /**
+     * Skips on {@code input} itself, so that file streams seek instead of reading
+     */
+    private static void skipFully(InputStream input, long count, String name) throws IOException {
+        while (count > 0) {
+            final long skipped = input.skip(count);
+            if (skipped > 0) {
+                count -= skipped;
+            } else if (input.read() != -1) {
+                count--;
+            } else {
+                throw new IOException("Resume offset is beyond the end of " + name);
+            }
+        }
+    }
+
+    static void reportSkipped(GossipyInputStream.Listener listener, long count) {
+        while (count > 0) {
+            final int length = (int) Math.min(count, Integer.MAX_VALUE);
+            listener.onRead(length);
+            count -= length;
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    }
+
+    /**
+     * Copies the rest of {@code source} to a temporary file to learn its size before writing it,
+     * as cpio needs the size up front. The default temporary directory is the app's cache.
+     */
+    private static void spill(BufferedSource source, String name, long time,
+                              AirDropCpioOutputStream cpio) throws IOException {
+        final File file = File.createTempFile("spill", null);
+        try {
+            try (final BufferedSink sink = Okio.buffer(Okio.sink(file))) {
+                sink.writeAll(source);
+            }
+
+            cpio.putEntry(name, FILE_MODE, time, file.length());
+
+            try (final BufferedSource spilled = Okio.buffer(Okio.source(file))) {
+                spilled.readAll(Okio.sink(cpio));
+            }
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private static boolean looksCompressed(BufferedSource source) throws IOException {
+        source.request(PROBE_SIZE);
+        final int length = (int) Math.min(PROBE_SIZE, source.getBuffer().size());
+        if (length == 0) {
+            return false;
+        }
+
+        final byte[] sample = source.peek().readByteArray(length);
+        final int[] counts = new int[256];
+        for (byte b : sample) {
+            counts[b & 0xff]++;
+        }
 
-                cpio.closeArchiveEntry();
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                final double p = (double) count / length;
+                entropy -= p * Math.log(p);
             }
         }
+
+        return entropy / Math.log(2) > PROBE_MAX_ENTROPY;
     }
 
     static void unpack(InputStream input, Set<String> paths, FileFactory factory) throws IOException {
         try (final GzipCompressorInputStream gzip = new GzipCompressorInputStream(input);
-             final CpioArchiveInputStream cpio = new CpioArchiveInputStream(gzip)) {
-            CpioArchiveEntry entry;
-            while ((entry = cpio.getNextCPIOEntry()) != null) {
-                if (entry.isRegularFile() && paths.contains(entry.getName())) {
-                    factory.onFile(entry.getName(), entry.getSize(), cpio);
+             final AirDropCpioInputStream cpio = new AirDropCpioInputStream(gzip)) {
+            AirDropCpioInputStream.Entry entry;
+            while ((entry = cpio.getNextEntry()) != null) {
+                if (entry.isRegularFile() && isSafePath(entry.name)
+                        && paths.contains(getTopLevelPath(entry.name))) {
+                    factory.onFile(entry.name, entry.size, cpio);
                 }
             }
         }
     }
 
+    /**
+     * @return the path of the item asked for that {@code path} belongs to, which is
+     * {@code path} itself unless it lies inside a directory
+     */
+    static String getTopLevelPath(String path) {
+        final int start = path.startsWith("./") ? 2 : 0;
+        final int slash = path.indexOf('/', start);
+        return slash == -1 ? path : path.substring(0, slash);
+    }
+
+    static boolean isSafePath(String path) {
+        for (String segment : path.split("/")) {
+            if (segment.equals("..")) {
+                return false;
+            }
+        }
+        return !path.startsWith("/");
+    }
+
+    /**
+     * Where an earlier upload of the same archive stopped: the files the peer has in full,
+     * and how many bytes it has of the one after them
+     */
+    static class ResumePoint {
+
+        final Set<String> completed;
+        final String partial;
+        final long offset;
+
+        ResumePoint(Set<String> completed, String partial, long offset) {
+            this.completed = completed;
+            this.partial = partial;
+            this.offset = offset;
+        }
+
+        @Override
+        public String toString() {
+            return completed.size() + " files done, " + partial + " at " + offset;
+        }
+
+    }
+
     public interface FileFactory {
 
-        void onFile(String name, long size, InputStream input);
+        void onFile(String name, long size, InputStream input) throws IOException;
 
     }
 
@@ -31,22 +31,36 @@ import org.xml.sax.SAXException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
+import java.net.Proxy;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.URLEncoder;
 import java.text.ParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.X509TrustManager;
 import javax.xml.parsers.ParserConfigurationException;
 
 import okhttp3.Call;
 import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
@@ -54,23 +68,43 @@ import okhttp3.ResponseBody;
 import okio.Buffer;
 import okio.BufferedSink;
 import okio.Okio;
+import okio.Source;
 
 class AirDropClient {
 
     private static final String TAG = "AirDropClient";
 
+    // Idle connections kept per client, enough for every peer of a broadcast
+    private static final int MAX_IDLE_CONNECTIONS = 16;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    private static final int SESSION_CACHE_SIZE = 64;
+    private static final int SESSION_TIMEOUT_SECONDS = (int) TimeUnit.HOURS.toSeconds(1);
+
     private final Handler mHandler = new Handler(Looper.getMainLooper());
 
     private OkHttpClient mHttpClient;
     private NetworkInterface mInterface;
 
     AirDropClient(CertificateManager certificateManager) {
+        final SSLContext sslContext = certificateManager.getSSLContext();
+
+        // Let handshakes with a peer seen before resume the earlier session
+        final SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        if (sessionContext != null) {
+            sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessionContext.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        }
+
         mHttpClient = new OkHttpClient.Builder()
                 .socketFactory(new LinkLocalAddressSocketFactory())
                 .sslSocketFactory(
-                        certificateManager.getSSLContext().getSocketFactory(),
+                        sslContext.getSocketFactory(),
                         (X509TrustManager) certificateManager.getTrustManagers()[0])
                 .hostnameVerifier((hostname, session) -> true)
+                .connectionPool(new ConnectionPool(
+                        MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .eventListener(new HandshakeListener())
                 .build();
     }
 
@@ -79,6 +113,14 @@ class AirDropClient {
     }
 
     Call post(final String url, NSDictionary body, AirDropClientCallback callback) {
+        return post(url, body, null, callback);
+    }
+
+    /**
+     * @param stats if not null, the TLS handshakes this request needs are added to it
+     */
+    Call post(final String url, NSDictionary body, HandshakeStats stats,
+              AirDropClientCallback callback) {
         final Buffer buffer = new Buffer();
 
         try {
@@ -90,14 +132,15 @@ class AirDropClient {
 
         final Call call = post(url, RequestBody.create(
                 buffer.readByteString(), MediaType.get("application/octet-stream")),
-                callback);
+                stats, callback);
 
         buffer.close();
 
         return call;
     }
 
-    Call post(final String url, final InputStream input, AirDropClientCallback callback) {
+    Call post(final String url, final InputStream input, HandshakeStats stats,
+              AirDropClientCallback callback) {
         return post(url, new RequestBody() {
                     @Override
                     public MediaType contentType() {
@@ -106,18 +149,65 @@ class AirDropClient {
 
                     @Override
                     public void writeTo(@NonNull BufferedSink bufferedSink) throws IOException {
-                        bufferedSink.writeAll(Okio.source(input));
-                        input.close();
+                        try {
+                            bufferedSink.writeAll(Okio.source(input));
+                        } finally {
+                            input.close();
+                        }
                     }
                 },
-                callback);
+                stats, callback);
     }
 
-    private Call post(final String url, RequestBody body, final AirDropClientCallback callback) {
-        final Call call = mHttpClient.newCall(new Request.Builder()
-                .url(url)
-                .post(body)
-                .build());
+    /**
+     * Posts the raw bytes of one file, opened only once the request is being written
+     *
+     * @param length the length of the file, or -1 if it is not known
+     */
+    Call post(final String url, String path, long length, StreamOpener opener,
+              HandshakeStats stats, AirDropClientCallback callback) {
+        final String encodedPath;
+        try {
+            encodedPath = URLEncoder.encode(path, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+
+        return post(new Request.Builder()
+                        .url(url)
+                        .header(AirDropServer.HEADER_PATH, encodedPath)
+                        .post(new RequestBody() {
+                            @Override
+                            public MediaType contentType() {
+                                return MediaType.get("application/octet-stream");
+                            }
+
+                            @Override
+                            public long contentLength() {
+                                return length;
+                            }
+
+                            @Override
+                            public void writeTo(@NonNull BufferedSink bufferedSink)
+                                    throws IOException {
+                                try (final Source source = Okio.source(opener.open())) {
+                                    bufferedSink.writeAll(source);
+                                }
+                            }
+                        }),
+                stats, callback);
+    }
+
+    private Call post(final String url, RequestBody body, HandshakeStats stats,
+                      final AirDropClientCallback callback) {
+        return post(new Request.Builder().url(url).post(body), stats, callback);
+    }
+
+    private Call post(Request.Builder builder, HandshakeStats stats,
+                      final AirDropClientCallback callback) {
+        final Request request = builder.tag(HandshakeStats.class, stats).build();
+        final String url = request.url().toString();
+        final Call call = mHttpClient.newCall(request);
 
         call.enqueue(new Callback() {
             @Override
@@ -132,26 +222,9 @@ class AirDropClient {
 
             @Override
             public void onResponse(@NonNull Call call, @NonNull Response response) {
-                final int statusCode = response.code();
-                if (statusCode != 200) {
-                    postFailure(callback, new IOException("Request failed: " + statusCode));
-                    return;
-                }
-
-                final ResponseBody responseBody = response.body();
-                if (responseBody == null) {
-                    postFailure(callback, new IOException("Response body null"));
-                    return;
-                }
-
-                try {
-                    NSDictionary root = (NSDictionary) PropertyListParser.parse(responseBody.byteStream());
-                    postResponse(callback, root);
-                } catch (PropertyListFormatException | ParseException |
-                        ParserConfigurationException | SAXException e) {
-                    postFailure(callback, new IOException(e));
-                } catch (IOException e) {
-                    postFailure(callback, e);
+                // Closing the response hands the connection back to the pool for the next call
+                try (final Response ignored = response) {
+                    handleResponse(response, callback);
                 }
             }
         });
@@ -159,6 +232,30 @@ class AirDropClient {
         return call;
     }
 
+    private void handleResponse(Response response, AirDropClientCallback callback) {
+        final int statusCode = response.code();
+        if (statusCode != 200) {
+            postFailure(callback, new StatusException(statusCode));
+            return;
+        }
+
+        final ResponseBody responseBody = response.body();
+        if (responseBody == null) {
+            postFailure(callback, new IOException("Response body null"));
+            return;
+        }
+
+        try {
+            NSDictionary root = (NSDictionary) PropertyListParser.parse(responseBody.byteStream());
+            postResponse(callback, root);
+        } catch (PropertyListFormatException | ParseException |
+                ParserConfigurationException | SAXException e) {
+            postFailure(callback, new IOException(e));
+        } catch (IOException e) {
+            postFailure(callback, e);
+        }
+    }
+
     private void postResponse(final AirDropClientCallback callback, final NSDictionary response) {
         mHandler.post(() -> callback.onResponse(response));
     }
@@ -167,6 +264,12 @@ class AirDropClient {
         mHandler.post(() -> callback.onFailure(e));
     }
 
+    interface StreamOpener {
+
+        InputStream open() throws IOException;
+
+    }
+
     interface AirDropClientCallback {
 
         void onFailure(IOException e);
@@ -175,6 +278,103 @@ class AirDropClient {
 
     }
 
+    /**
+     * The peer answered a request, but not with success, as when its user declined or canceled
+     */
+    static class StatusException extends IOException {
+
+        final int statusCode;
+
+        StatusException(int statusCode) {
+            super("Request failed: " + statusCode);
+            this.statusCode = statusCode;
+        }
+
+    }
+
+    /**
+     * TLS handshakes made for the requests of one send, and when its first request went out
+     */
+    static class HandshakeStats {
+
+        private final long mCreatedAt = System.nanoTime();
+
+        private final AtomicInteger mCount = new AtomicInteger();
+        private final AtomicLong mNanos = new AtomicLong();
+
+        private final AtomicLong mFirstRequestAt = new AtomicLong();
+
+        int getCount() {
+            return mCount.get();
+        }
+
+        long getMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(mNanos.get());
+        }
+
+        /**
+         * @return how long after these stats were created the first request was written out,
+         * or -1 if none has been yet
+         */
+        long getFirstRequestDelayMillis() {
+            final long firstRequestAt = mFirstRequestAt.get();
+            return firstRequestAt == 0 ? -1
+                    : TimeUnit.NANOSECONDS.toMillis(firstRequestAt - mCreatedAt);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return mCount.get() + " TLS handshakes in " + getMillis() + " ms";
+        }
+
+    }
+
+    private static class HandshakeListener extends EventListener {
+
+        // Calls run on one thread at a time each, but many calls run at once
+        private final Map<Call, Long> mStartedAt = new ConcurrentHashMap<>();
+
+        @Override
+        public void secureConnectStart(@NonNull Call call) {
+            mStartedAt.put(call, System.nanoTime());
+        }
+
+        @Override
+        public void secureConnectEnd(@NonNull Call call, Handshake handshake) {
+            final Long startedAt = mStartedAt.remove(call);
+            if (startedAt == null) {
+                return;
+            }
+
+            final long nanos = System.nanoTime() - startedAt;
+            Log.d(TAG, "TLS handshake with " + call.request().url().host() + " took "
+                    + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms");
+
+            final HandshakeStats stats = call.request().tag(HandshakeStats.class);
+            if (stats != null) {
+                stats.mCount.incrementAndGet();
+                stats.mNanos.addAndGet(nanos);
+            }
+        }
+
+        @Override
+        public void requestHeadersEnd(@NonNull Call call, @NonNull Request request) {
+            final HandshakeStats stats = request.tag(HandshakeStats.class);
+            if (stats != null) {
+                stats.mFirstRequestAt.compareAndSet(0, System.nanoTime());
+            }
+        }
+
+        @Override
+        public void connectFailed(@NonNull Call call, @NonNull InetSocketAddress address,
+                                  @NonNull Proxy proxy, Protocol protocol,
+                                  @NonNull IOException e) {
+            mStartedAt.remove(call);
+        }
+
+    }
+
     private class LinkLocalAddressSocketFactory extends SocketFactory {
 
         @Override
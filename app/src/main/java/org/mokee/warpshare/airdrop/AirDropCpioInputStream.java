@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.warpshare.airdrop;
+
+import androidx.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.apache.commons.compress.archivers.cpio.CpioConstants.C_ISDIR;
+import static org.apache.commons.compress.archivers.cpio.CpioConstants.C_ISREG;
+import static org.apache.commons.compress.archivers.cpio.CpioConstants.S_IFMT;
+
+/**
+ * Reads cpio archives in the "odc" and "newc" formats. After {@link #getNextEntry()}, reading
+ * this stream returns the data of that entry.
+ */
+class AirDropCpioInputStream extends InputStream {
+
+    private static final int ODC_HEADER_SIZE = 76;
+    private static final int NEWC_HEADER_SIZE = 110;
+
+    // PATH_MAX, including the terminating NUL
+    private static final int MAX_NAME_SIZE = 4096;
+
+    private static final String TRAILER = "TRAILER!!!";
+
+    private final InputStream mInput;
+
+    private final byte[] mHeader = new byte[NEWC_HEADER_SIZE];
+    private byte[] mName = new byte[256];
+    private final byte[] mSkipBuffer = new byte[8192];
+
+    private long mRemaining = 0;
+    private int mPadding = 0;
+
+    private boolean mEnded = false;
+
+    AirDropCpioInputStream(InputStream input) {
+        mInput = input;
+    }
+
+    /**
+     * @return the next entry, or null once the trailer is reached
+     */
+    Entry getNextEntry() throws IOException {
+        if (mEnded) {
+            return null;
+        }
+
+        skipFully(mRemaining + mPadding);
+        mRemaining = 0;
+        mPadding = 0;
+
+        readFully(mHeader, 0, 6);
+        if (mHeader[0] != '0' || mHeader[1] != '7' || mHeader[2] != '0'
+                || mHeader[3] != '7' || mHeader[4] != '0') {
+            throw new IOException("Unknown cpio magic");
+        }
+
+        final boolean newc;
+        final int mode;
+        final long time;
+        final long size;
+        final int nameSize;
+        switch (mHeader[5]) {
+            case '7':
+                newc = false;
+                readFully(mHeader, 6, ODC_HEADER_SIZE - 6);
+                mode = (int) parse(mHeader, 18, 6, 3);
+                time = parse(mHeader, 48, 11, 3);
+                nameSize = (int) parse(mHeader, 59, 6, 3);
+                size = parse(mHeader, 65, 11, 3);
+                break;
+            case '1':
+            case '2':
+                newc = true;
+                readFully(mHeader, 6, NEWC_HEADER_SIZE - 6);
+                mode = (int) parse(mHeader, 14, 8, 4);
+                time = parse(mHeader, 46, 8, 4);
+                size = parse(mHeader, 54, 8, 4);
+                nameSize = (int) parse(mHeader, 94, 8, 4);
+                break;
+            default:
+                throw new IOException("Unknown cpio magic");
+        }
+
+        if (nameSize < 1 || nameSize > MAX_NAME_SIZE) {
+            throw new IOException("Invalid cpio name size: " + nameSize);
+        }
+        if (mName.length < nameSize) {
+            mName = new byte[nameSize];
+        }
+        readFully(mName, 0, nameSize);
+        final String name = new String(mName, 0, nameSize - 1, StandardCharsets.UTF_8);
+
+        if (newc) {
+            skipFully(pad4(NEWC_HEADER_SIZE + nameSize));
+            mPadding = pad4(size);
+        }
+
+        if (TRAILER.equals(name)) {
+            mEnded = true;
+            return null;
+        }
+
+        mRemaining = size;
+        return new Entry(name, mode, time, size);
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] buf = new byte[1];
+        final int ret = read(buf, 0, 1);
+        return ret == -1 ? -1 : buf[0] & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (mRemaining == 0) {
+            return -1;
+        }
+
+        final int count = mInput.read(b, off, (int) Math.min(len, mRemaining));
+        if (count == -1) {
+            throw new EOFException("Truncated cpio entry");
+        }
+        mRemaining -= count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(mInput.available(), mRemaining);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInput.close();
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            final int count = mInput.read(b, off, len);
+            if (count == -1) {
+                throw new EOFException("Truncated cpio archive");
+            }
+            off += count;
+            len -= count;
+        }
+    }
+
+    private void skipFully(long count) throws IOException {
+        while (count > 0) {
+            final int read = mInput.read(mSkipBuffer, 0, (int) Math.min(count, mSkipBuffer.length));
+            if (read == -1) {
+                throw new EOFException("Truncated cpio archive");
+            }
+            count -= read;
+        }
+    }
+
+    private static long parse(byte[] buffer, int pos, int digits, int shift) throws IOException {
+        long value = 0;
+        for (int i = pos; i < pos + digits; i++) {
+            final int c = buffer[i];
+            final int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                digit = c - 'a' + 10;
+            } else if (c >= 'A' && c <= 'F') {
+                digit = c - 'A' + 10;
+            } else {
+                digit = Integer.MAX_VALUE;
+            }
+            if (digit >= 1 << shift) {
+                throw new IOException("Malformed cpio header");
+            }
+            value = (value << shift) | digit;
+        }
+        return value;
+    }
+
+    private static int pad4(long length) {
+        return (int) ((4 - (length & 3)) & 3);
+    }
+
+    static final class Entry {
+
+        final String name;
+        final int mode;
+        final long time;
+        final long size;
+
+        Entry(String name, int mode, long time, long size) {
+            this.name = name;
+            this.mode = mode;
+            this.time = time;
+            this.size = size;
+        }
+
+        boolean isRegularFile() {
+            return (mode & S_IFMT) == C_ISREG;
+        }
+
+        boolean isDirectory() {
+            return (mode & S_IFMT) == C_ISDIR;
+        }
+
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.warpshare.airdrop;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.apache.commons.compress.archivers.cpio.CpioConstants.C_ISDIR;
+import static org.apache.commons.compress.archivers.cpio.CpioConstants.S_IFMT;
+
+/**
+ * Writes a cpio archive in the portable "odc" format, the one Apple devices send and accept.
+ * Headers are encoded straight into a reused buffer, and the output is byte-for-byte what
+ * commons-compress writes for {@code FORMAT_OLD_ASCII}, except that names are encoded as UTF-8
+ * rather than escaped into ASCII.
+ */
+class AirDropCpioOutputStream extends OutputStream {
+
+    /**
+     * The size field holds 11 octal digits.
+     */
+    static final long MAX_ENTRY_SIZE = 077777777777L;
+
+    private static final int HEADER_SIZE = 76;
+    private static final int MAX_NAME_SIZE = 0777777;
+    private static final int BLOCK_SIZE = 512;
+
+    private static final String TRAILER = "TRAILER!!!";
+
+    private final OutputStream mOutput;
+
+    private final Set<String> mNames = new HashSet<>();
+
+    private byte[] mHeader = new byte[HEADER_SIZE + 256];
+
+    private long mNextInode = 1;
+    private long mWritten = 0;
+
+    // Bytes still owed to the open entry, or -1 if there is none
+    private long mRemaining = -1;
+
+    private boolean mFinished = false;
+
+    AirDropCpioOutputStream(OutputStream output) {
+        mOutput = output;
+    }
+
+    /**
+     * @param time modification time in seconds
+     */
+    void putEntry(String name, int mode, long time, long size) throws IOException {
+        if (mRemaining != -1) {
+            throw new IOException("Previous entry not closed");
+        }
+        if (size < 0 || size > MAX_ENTRY_SIZE) {
+            throw new IOException("Entry size out of range: " + size);
+        }
+        if (!mNames.add(name)) {
+            throw new IOException("Duplicate entry: " + name);
+        }
+
+        final long inode = mNextInode & 0777777;
+        final long device = (mNextInode >> 18) & 0777777;
+        mNextInode++;
+
+        final int links = (mode & S_IFMT) == C_ISDIR ? 2 : 1;
+
+        writeHeader(name, device, inode, mode, links, time, size);
+        mRemaining = size;
+    }
+
+    void closeEntry() throws IOException {
+        if (mRemaining > 0) {
+            throw new IOException("Entry is " + mRemaining + " bytes short");
+        }
+        mRemaining = -1;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        if (len > mRemaining) {
+            throw new IOException("Writing past the end of the entry");
+        }
+        mOutput.write(b, off, len);
+        mRemaining -= len;
+        mWritten += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOutput.flush();
+    }
+
+    void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        if (mRemaining != -1) {
+            throw new IOException("Archive contains an unclosed entry");
+        }
+
+        writeHeader(TRAILER, 0, 0, 0, 1, 0, 0);
+
+        final int tail = (int) (mWritten % BLOCK_SIZE);
+        if (tail != 0) {
+            mOutput.write(new byte[BLOCK_SIZE - tail]);
+            mWritten += BLOCK_SIZE - tail;
+        }
+
+        mFinished = true;
+    }
+
+    /**
+     * Leaves the archive without a trailer, so that what was written can't pass for a
+     * complete archive once closed
+     */
+    void abort() {
+        mFinished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            mOutput.close();
+        }
+    }
+
+    private void writeHeader(String name, long device, long inode, int mode, int links,
+                             long time, long size) throws IOException {
+        final int nameLength = encodeName(name);
+        if (nameLength + 1 > MAX_NAME_SIZE) {
+            throw new IOException("Entry name too long: " + name);
+        }
+
+        final byte[] header = mHeader;
+        header[0] = '0';
+        header[1] = '7';
+        header[2] = '0';
+        header[3] = '7';
+        header[4] = '0';
+        header[5] = '7';
+
+        int pos = 6;
+        pos = putOctal(header, pos, device, 6);
+        pos = putOctal(header, pos, inode, 6);
+        pos = putOctal(header, pos, mode, 6);
+        pos = putOctal(header, pos, 0, 6);      // uid
+        pos = putOctal(header, pos, 0, 6);      // gid
+        pos = putOctal(header, pos, links, 6);
+        pos = putOctal(header, pos, 0, 6);      // rdev
+        pos = putOctal(header, pos, time, 11);
+        pos = putOctal(header, pos, nameLength + 1, 6);
+        putOctal(header, pos, size, 11);
+
+        header[HEADER_SIZE + nameLength] = 0;
+
+        final int length = HEADER_SIZE + nameLength + 1;
+        mOutput.write(header, 0, length);
+        mWritten += length;
+    }
+
+    /**
+     * Encodes the name as UTF-8 right after the fixed part of the header.
+     *
+     * @return the encoded length
+     */
+    private int encodeName(String name) {
+        final int length = name.length();
+        ensureHeader(length);
+
+        for (int i = 0; i < length; i++) {
+            final char c = name.charAt(i);
+            if (c >= 0x80) {
+                final byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+                ensureHeader(encoded.length);
+                System.arraycopy(encoded, 0, mHeader, HEADER_SIZE, encoded.length);
+                return encoded.length;
+            }
+            mHeader[HEADER_SIZE + i] = (byte) c;
+        }
+
+        return length;
+    }
+
+    private void ensureHeader(int nameLength) {
+        if (mHeader.length < HEADER_SIZE + nameLength + 1) {
+            mHeader = new byte[HEADER_SIZE + nameLength + 1];
+        }
+    }
+
+    private static int putOctal(byte[] buffer, int pos, long value, int digits) {
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            buffer[i] = (byte) ('0' + (value & 7));
+            value >>>= 3;
+        }
+        return pos + digits;
+    }
+
+}
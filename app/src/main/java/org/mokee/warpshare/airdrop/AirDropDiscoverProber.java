@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mokee.warpshare.airdrop;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Schedules the /Discover requests sent for resolved services. Repeated resolves of a service
+ * are coalesced into the probe already running or waiting for it, a service already probed at
+ * the same address is not probed again, and at most {@link #MAX_IN_FLIGHT} probes run at once,
+ * peers sent to most recently first. After a failure, a service is not probed again until an
+ * exponentially growing delay has passed. Main thread only.
+ */
+class AirDropDiscoverProber {
+
+    private static final int MAX_IN_FLIGHT = 4;
+
+    private static final long BACKOFF_BASE_MS = 2000;
+    private static final long BACKOFF_MAX_MS = 60 * 1000;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Probe mProbe;
+
+    // Service id to the address being probed, waiting to be probed, or last probed successfully
+    private final Map<String, String> mInFlight = new HashMap<>();
+    private final Map<String, String> mWaiting = new LinkedHashMap<>();
+    private final Map<String, String> mConfirmed = new HashMap<>();
+
+    // Probes still running for services that have been lost since
+    private final Set<String> mCanceled = new HashSet<>();
+
+    private final Map<String, Integer> mFailures = new HashMap<>();
+    private final Map<String, Long> mRetryAt = new HashMap<>();
+
+    private final Map<String, Long> mLastUsed = new HashMap<>();
+
+    private final Runnable mScheduleRunnable = this::schedule;
+
+    private int mIssued = 0;
+    private int mCoalesced = 0;
+    private int mFailed = 0;
+
+    AirDropDiscoverProber(Probe probe) {
+        mProbe = probe;
+    }
+
+    void request(String id, String url) {
+        if (url.equals(mInFlight.get(id)) && !mCanceled.contains(id)) {
+            mCoalesced++;
+            return;
+        }
+
+        if (url.equals(mConfirmed.get(id)) && !mWaiting.containsKey(id)) {
+            mCoalesced++;
+            return;
+        }
+
+        if (mWaiting.containsKey(id)) {
+            mCoalesced++;
+        }
+
+        mWaiting.put(id, url);
+        schedule();
+    }
+
+    /**
+     * Forgets about a lost service, dropping the result of its probe if one is running.
+     */
+    void cancel(String id) {
+        mWaiting.remove(id);
+        mConfirmed.remove(id);
+        mFailures.remove(id);
+        mRetryAt.remove(id);
+        if (mInFlight.containsKey(id)) {
+            mCanceled.add(id);
+        }
+    }
+
+    /**
+     * Forgets about every service, as when discovery stops, dropping the results of the probes
+     * still running.
+     */
+    void cancelAll() {
+        mHandler.removeCallbacks(mScheduleRunnable);
+        mCanceled.addAll(mInFlight.keySet());
+        mWaiting.clear();
+        mConfirmed.clear();
+        mFailures.clear();
+        mRetryAt.clear();
+    }
+
+    /**
+     * Probes for peers used recently go first.
+     */
+    void markUsed(String id) {
+        mLastUsed.put(id, SystemClock.elapsedRealtime());
+    }
+
+    int getIssuedCount() {
+        return mIssued;
+    }
+
+    int getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    int getFailedCount() {
+        return mFailed;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "issued=" + mIssued + " coalesced=" + mCoalesced + " failed=" + mFailed
+                + " inFlight=" + mInFlight.size() + " waiting=" + mWaiting.size();
+    }
+
+    private void schedule() {
+        mHandler.removeCallbacks(mScheduleRunnable);
+
+        final long now = SystemClock.elapsedRealtime();
+        long nextRetryAt = Long.MAX_VALUE;
+
+        while (mInFlight.size() < MAX_IN_FLIGHT) {
+            String next = null;
+            for (String id : mWaiting.keySet()) {
+                if (mInFlight.containsKey(id)) {
+                    continue;
+                }
+
+                final Long retryAt = mRetryAt.get(id);
+                if (retryAt != null && retryAt > now) {
+                    nextRetryAt = Math.min(nextRetryAt, retryAt);
+                    continue;
+                }
+
+                if (next == null || getLastUsed(id) > getLastUsed(next)) {
+                    next = id;
+                }
+            }
+
+            if (next == null) {
+                break;
+            }
+
+            start(next, mWaiting.remove(next));
+        }
+
+        if (nextRetryAt != Long.MAX_VALUE) {
+            mHandler.postDelayed(mScheduleRunnable, nextRetryAt - now);
+        }
+    }
+
+    private long getLastUsed(String id) {
+        final Long lastUsed = mLastUsed.get(id);
+        return lastUsed == null ? 0 : lastUsed;
+    }
+
+    private void start(String id, String url) {
+        mInFlight.put(id, url);
+        mIssued++;
+        mProbe.probe(id, url, ok -> handleResult(id, ok));
+    }
+
+    private boolean handleResult(String id, boolean ok) {
+        final String url = mInFlight.remove(id);
+        final boolean wanted = !mCanceled.remove(id);
+
+        if (ok) {
+            if (wanted) {
+                mConfirmed.put(id, url);
+            }
+            mFailures.remove(id);
+            mRetryAt.remove(id);
+        } else {
+            mFailed++;
+            if (wanted) {
+                final int failures = mFailures.containsKey(id) ? mFailures.get(id) + 1 : 1;
+                mFailures.put(id, failures);
+                mRetryAt.put(id, SystemClock.elapsedRealtime() + Math.min(BACKOFF_MAX_MS,
+                        BACKOFF_BASE_MS << Math.min(failures - 1, 16)));
+            }
+        }
+
+        schedule();
+
+        return wanted;
+    }
+
+    interface Probe {
+
+        void probe(String id, String url, Callback callback);
+
+    }
+
+    interface Callback {
+
+        /**
+         * Must be called on the main thread once the probe is over.
+         *
+         * @return false if the service has been lost meanwhile, and the result should be dropped
+         */
+        boolean onProbed(boolean ok);
+
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.warpshare.airdrop;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * The writing stage of a received archive. The decoder hands each entry over through a ring of
+ * its own and moves on to the next one while a writer thread persists the entries in order, so
+ * that decompression keeps going while the storage is busy. At most {@link #MAX_QUEUED} entries
+ * of {@link #ENTRY_BUFFER_DEPTH} segments each wait for the writer.
+ */
+class AirDropEntryWriter {
+
+    private static final String TAG = "AirDropEntryWriter";
+
+    private static final int MAX_QUEUED = 4;
+
+    // 1 MiB of each entry is buffered ahead of the writer
+    private static final int ENTRY_BUFFER_DEPTH = 16;
+
+    private static final Entry END = new Entry(null, 0);
+
+    private final BlockingQueue<Entry> mQueue = new ArrayBlockingQueue<>(MAX_QUEUED);
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    private final EntrySink mSink;
+
+    private final byte[] mBuffer = new byte[AirDropRingBuffer.SEGMENT_SIZE];
+
+    private volatile boolean mAborted = false;
+    private volatile Throwable mFailure;
+
+    AirDropEntryWriter(Executor executor, EntrySink sink) {
+        mSink = sink;
+        executor.execute(this::drain);
+    }
+
+    /**
+     * Copies an entry over to the writer, waiting while the writer is too far behind. If the
+     * writer gives up on the entry early, the rest of it is skipped.
+     */
+    void write(String name, long size, InputStream input) throws IOException {
+        if (mAborted) {
+            throw abortedException();
+        }
+
+        final Entry entry = new Entry(name, size);
+        try {
+            mQueue.put(entry);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+
+        boolean dropped = false;
+        try (final OutputStream sink = entry.ring.sink()) {
+            int count;
+            while ((count = input.read(mBuffer)) != -1) {
+                if (dropped) {
+                    continue;
+                }
+                try {
+                    sink.write(mBuffer, 0, count);
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (mAborted) {
+                        throw abortedException();
+                    }
+                    dropped = true;
+                }
+            }
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            // The writer stopped reading before the end, so there is nothing to flush to
+            if (!dropped) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Waits until everything handed over has been written. An entry cut short by a failure
+     * while decoding is written as far as it got. If interrupted, entries not yet started
+     * are dropped instead.
+     *
+     * @throws IOException if the writer failed or was interrupted, so that entries were dropped
+     */
+    void close() throws IOException {
+        try {
+            mQueue.put(END);
+            mDone.await();
+        } catch (InterruptedException e) {
+            mAborted = true;
+            Entry entry;
+            while ((entry = mQueue.poll()) != null) {
+                entry.ring.cancel();
+            }
+            // Only this thread adds to the queue, so there is room now
+            mQueue.offer(END);
+            throw new InterruptedIOException();
+        }
+
+        if (mAborted) {
+            throw abortedException();
+        }
+    }
+
+    private IOException abortedException() {
+        final Throwable failure = mFailure;
+        return failure != null
+                ? new IOException("Failed writing entries", failure)
+                : new InterruptedIOException();
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                final Entry entry;
+                try {
+                    entry = mQueue.take();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Interrupted while writing", e);
+                    mAborted = true;
+                    continue;
+                }
+
+                if (entry == END) {
+                    break;
+                } else if (mAborted) {
+                    entry.ring.cancel();
+                    continue;
+                }
+
+                final InputStream source = entry.ring.source();
+                try {
+                    mSink.onEntry(entry.name, entry.size, source);
+                } catch (Throwable e) {
+                    Log.e(TAG, "Failed writing " + entry.name, e);
+                    fail(e, entry);
+                    continue;
+                }
+                if (!AirDropManager.endsCleanly(source)) {
+                    entry.ring.cancel();
+                }
+            }
+        } finally {
+            mDone.countDown();
+        }
+    }
+
+    /**
+     * Drops {@code current} and everything queued after it. Entries queued later are dropped
+     * as they are taken, until the decoder gives up and closes.
+     */
+    private void fail(Throwable failure, Entry current) {
+        mFailure = failure;
+        mAborted = true;
+        current.ring.cancel();
+
+        final List<Entry> queued = new ArrayList<>();
+        mQueue.drainTo(queued);
+        for (Entry entry : queued) {
+            if (entry == END) {
+                // Closing already, put it back so the loop ends
+                mQueue.offer(END);
+            } else {
+                entry.ring.cancel();
+            }
+        }
+    }
+
+    interface EntrySink {
+
+        /**
+         * Called on the writer thread for each entry in turn. Whatever is left unread of
+         * {@code input} when this returns is skipped.
+         */
+        void onEntry(String name, long size, InputStream input);
+
+    }
+
+    private static class Entry {
+
+        final String name;
+        final long size;
+        final AirDropRingBuffer ring;
+
+        Entry(String name, long size) {
+            this.name = name;
+            this.size = size;
+            this.ring = name != null ? new AirDropRingBuffer(ENTRY_BUFFER_DEPTH) : null;
+        }
+
+    }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.warpshare.airdrop;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip writer that splits its input into fixed-size blocks and deflates them in parallel, in
+ * the manner of pigz. Each block is primed with the last 32 KiB of the block before it and ended
+ * with a sync flush, so the raw deflate outputs can simply be concatenated into one ordinary gzip
+ * member that any inflater, including Apple's, will accept.
+ * <p>
+ * Without an executor the blocks are deflated inline on the writing thread. The compression
+ * level may be changed between entries with {@link #setLevel(int)}, which ends the current block
+ * early so that each block is deflated at a single level.
+ */
+class AirDropGzipOutputStream extends OutputStream {
+
+    static final int BLOCK_SIZE = 128 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final byte[] HEADER = {
+            0x1f, (byte) 0x8b,  // magic
+            Deflater.DEFLATED,  // method
+            0,                  // flags
+            0, 0, 0, 0,         // mtime
+            0,                  // extra flags
+            (byte) 0xff,        // OS unknown, as commons-compress writes
+    };
+
+    // One deflater per level and thread, as changing the level of a used one is not free
+    private static final ThreadLocal<Deflater[]> sDeflaters = new ThreadLocal<Deflater[]>() {
+        @Override
+        protected Deflater[] initialValue() {
+            return new Deflater[Deflater.BEST_COMPRESSION + 2];
+        }
+    };
+
+    private final OutputStream mOutput;
+    private final Executor mExecutor;
+    private final int mMaxPending;
+
+    private final ArrayDeque<Block> mPending = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> mFreeBlocks = new ArrayDeque<>();
+
+    private final CRC32 mCrc = new CRC32();
+    private long mSize = 0;
+
+    private byte[] mBlock;
+    private int mBlockLength = 0;
+
+    private final byte[] mDictionary = new byte[DICTIONARY_SIZE];
+    private int mDictionaryLength = 0;
+
+    private int mLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private boolean mClosed = false;
+
+    /**
+     * @param executor if null, deflate on the calling thread
+     * @param threads  number of blocks allowed to be compressing at once, which should match the
+     *                 parallelism of {@code executor}
+     */
+    AirDropGzipOutputStream(OutputStream output, Executor executor, int threads)
+            throws IOException {
+        mOutput = output;
+        mExecutor = executor;
+        mMaxPending = threads * 2;
+        mOutput.write(HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        if (mClosed) {
+            throw new IOException("stream closed");
+        }
+
+        mCrc.update(b, off, len);
+        mSize += len;
+
+        while (len > 0) {
+            if (mBlock == null) {
+                mBlock = mFreeBlocks.isEmpty() ? new byte[BLOCK_SIZE] : mFreeBlocks.pop();
+                mBlockLength = 0;
+            }
+
+            final int count = Math.min(len, BLOCK_SIZE - mBlockLength);
+            System.arraycopy(b, off, mBlock, mBlockLength, count);
+            mBlockLength += count;
+            off += count;
+            len -= count;
+
+            if (mBlockLength == BLOCK_SIZE) {
+                submit(false);
+            }
+        }
+    }
+
+    /**
+     * @param level a {@link Deflater} level for the data written from now on, where
+     *              {@link Deflater#NO_COMPRESSION} emits stored blocks
+     */
+    void setLevel(int level) throws IOException {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid level: " + level);
+        }
+        if (level == mLevel) {
+            return;
+        }
+        if (mBlockLength > 0) {
+            submit(false);
+        }
+        mLevel = level;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOutput.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+
+        try {
+            submit(true);
+            drain(0);
+
+            final long crc = mCrc.getValue();
+            mOutput.write(new byte[]{
+                    (byte) crc, (byte) (crc >> 8), (byte) (crc >> 16), (byte) (crc >> 24),
+                    (byte) mSize, (byte) (mSize >> 8), (byte) (mSize >> 16), (byte) (mSize >> 24),
+            });
+        } finally {
+            mClosed = true;
+            for (Block block : mPending) {
+                block.output.cancel(true);
+            }
+            mPending.clear();
+            mOutput.close();
+        }
+    }
+
+    private void submit(boolean last) throws IOException {
+        final byte[] input = mBlock == null ? new byte[0] : mBlock;
+        final int length = mBlockLength;
+        final int level = mLevel;
+
+        // Stored blocks never refer back, so they need no dictionary
+        final byte[] dictionary = mDictionaryLength == 0 || level == Deflater.NO_COMPRESSION
+                ? null : copyOf(mDictionary, mDictionaryLength);
+
+        updateDictionary(input, length);
+
+        mBlock = null;
+        mBlockLength = 0;
+
+        if (mExecutor == null) {
+            mOutput.write(deflate(input, length, dictionary, level, last));
+            recycleBlock(input);
+            return;
+        }
+
+        final FutureTask<byte[]> output = new FutureTask<>(
+                () -> deflate(input, length, dictionary, level, last));
+        mPending.add(new Block(input, output));
+        mExecutor.execute(output);
+
+        drain(mMaxPending);
+    }
+
+    private void drain(int max) throws IOException {
+        while (mPending.size() > max) {
+            final Block block = mPending.poll();
+            try {
+                mOutput.write(block.output.get());
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw new IOException("Failed compressing block", e.getCause());
+            }
+            recycleBlock(block.input);
+        }
+    }
+
+    private void recycleBlock(byte[] block) {
+        if (block.length == BLOCK_SIZE) {
+            mFreeBlocks.push(block);
+        }
+    }
+
+    private void updateDictionary(byte[] input, int length) {
+        if (length >= DICTIONARY_SIZE) {
+            System.arraycopy(input, length - DICTIONARY_SIZE, mDictionary, 0, DICTIONARY_SIZE);
+            mDictionaryLength = DICTIONARY_SIZE;
+        } else {
+            final int keep = Math.min(mDictionaryLength, DICTIONARY_SIZE - length);
+            System.arraycopy(mDictionary, mDictionaryLength - keep, mDictionary, 0, keep);
+            System.arraycopy(input, 0, mDictionary, keep, length);
+            mDictionaryLength = keep + length;
+        }
+    }
+
+    private static byte[] deflate(byte[] input, int length, byte[] dictionary, int level,
+                                  boolean last) {
+        final Deflater[] deflaters = sDeflaters.get();
+        Deflater deflater = deflaters[level + 1];
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+            deflaters[level + 1] = deflater;
+        }
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(input, 0, length);
+
+        byte[] output = new byte[length + (length >> 3) + 64];
+        int size = 0;
+
+        if (last) {
+            deflater.finish();
+        }
+
+        while (true) {
+            if (size == output.length) {
+                output = copyOf(output, output.length * 2);
+            }
+
+            if (last) {
+                size += deflater.deflate(output, size, output.length - size);
+                if (deflater.finished()) {
+                    break;
+                }
+            } else {
+                final int count = deflater.deflate(output, size, output.length - size,
+                        Deflater.SYNC_FLUSH);
+                size += count;
+                if (size < output.length && deflater.needsInput()) {
+                    break;
+                }
+            }
+        }
+
+        return copyOf(output, size);
+    }
+
+    private static byte[] copyOf(byte[] data, int length) {
+        final byte[] copy = new byte[length];
+        System.arraycopy(data, 0, copy, 0, Math.min(length, data.length));
+        return copy;
+    }
+
+    private static class Block {
+
+        final byte[] input;
+        final Future<byte[]> output;
+
+        Block(byte[] input, Future<byte[]> output) {
+            this.input = input;
+            this.output = output;
+        }
+
+    }
+
+}
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -29,39 +30,53 @@ import androidx.annotation.Nullable;
 
 import com.dd.plist.NSArray;
 import com.dd.plist.NSDictionary;
+import com.dd.plist.NSNumber;
 import com.dd.plist.NSObject;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.mokee.warpshare.CertificateManager;
 
 import org.mokee.warpshare.GossipyInputStream;
+import org.mokee.warpshare.ProgressAggregator;
+import org.mokee.warpshare.base.DirectoryEntity;
 import org.mokee.warpshare.base.DiscoverListener;
 import org.mokee.warpshare.base.Discoverer;
 import org.mokee.warpshare.base.Entity;
 import org.mokee.warpshare.base.SendListener;
 import org.mokee.warpshare.base.Sender;
 import org.mokee.warpshare.base.SendingSession;
+import org.mokee.warpshare.base.TransferScheduler;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 import okhttp3.Call;
-import okio.BufferedSink;
-import okio.Okio;
-import okio.Pipe;
 
 import static org.mokee.warpshare.airdrop.AirDropTypes.getEntryType;
 import static org.mokee.warpshare.airdrop.AirDropTypes.getMimeType;
+import static org.mokee.warpshare.base.TransferScheduler.CPU_THREADS;
+import static org.mokee.warpshare.base.TransferScheduler.LANE_CPU;
+import static org.mokee.warpshare.base.TransferScheduler.LANE_IO;
+import static org.mokee.warpshare.base.TransferScheduler.LANE_TRANSFER;
+import static org.mokee.warpshare.base.TransferScheduler.PRIORITY_BACKGROUND;
+import static org.mokee.warpshare.base.TransferScheduler.PRIORITY_INTERACTIVE;
+import static org.mokee.warpshare.base.TransferScheduler.PRIORITY_TRANSFER;
 
 public class AirDropManager implements
         Discoverer,
@@ -71,8 +86,61 @@ public class AirDropManager implements
     public static final int STATUS_NO_BLUETOOTH = 1;
     public static final int STATUS_NO_WIFI = 2;
 
+    /**
+     * Deflate the archive in parallel blocks across all cores instead of on a single thread.
+     */
+    public static final int FLAG_PARALLEL_COMPRESSION = 1;
+
+    /**
+     * Store files that are already compressed, such as photos, videos and zips, instead of
+     * deflating them a second time.
+     */
+    public static final int FLAG_ADAPTIVE_COMPRESSION = 1 << 1;
+
+    /**
+     * Start reading and compressing the first few megabytes of the archive while the peer has
+     * not yet answered the /Ask, and throw them away if it declines. Off unless asked for, as
+     * every pending /Ask then holds a packing thread and up to 4 MiB of buffer.
+     */
+    public static final int FLAG_SPECULATIVE_PACKING = 1 << 2;
+
     private static final String TAG = "AirDropManager";
 
+    // 16 segments of 64 KiB between the packer and the HTTP writer
+    private static final int UPLOAD_BUFFER_DEPTH = AirDropRingBuffer.DEFAULT_DEPTH;
+
+    // 64 segments, 4 MiB, packed ahead while the /Ask is pending
+    private static final int SPECULATIVE_BUFFER_DEPTH = 64;
+
+    // How long a remembered peer may take to accept a connection before it is dropped
+    private static final int PROBE_TIMEOUT_MS = 1000;
+
+    // How long a send prepared for a peer stays valid after the peer was picked
+    private static final long PREPARE_TIMEOUT_MS = 60 * 1000;
+
+    // How long a broadcast waits for the other peers once the first one has accepted
+    private static final long BROADCAST_JOIN_WINDOW_MS = 5000;
+
+    // Version of the WarpShare extensions advertised in /Discover
+    private static final int MOKEE_API_VERSION = 3;
+
+    // Peers from this version on journal uploads and let senders resume them
+    private static final int MOKEE_API_RESUME = 2;
+
+    // Peers from this version on take files as raw uploads of their own instead of an archive
+    private static final int MOKEE_API_NATIVE = 3;
+
+    private static final String KEY_TRANSFER_ID = "org.mokee.TransferID";
+    private static final String KEY_RESUME = "org.mokee.Resume";
+    private static final String KEY_NATIVE = "org.mokee.Native";
+
+    // Files uploaded at once, each on its own connection, in the native mode
+    private static final int NATIVE_STREAMS = 4;
+
+    // A failed upload to a WarpShare peer is resumed up to 5 times, 2 s later and then doubling
+    private static final int RESUME_MAX_ATTEMPTS = 5;
+    private static final long RESUME_BACKOFF_MS = 2000;
+
     private final AirDropConfigManager mConfigManager;
 
     private final AirDropBleController mBleController;
@@ -82,14 +150,34 @@ public class AirDropManager implements
     private final AirDropClient mClient;
     private final AirDropServer mServer;
 
+    private final AirDropPeerCache mPeerCache;
+
+    private final AirDropResumeJournal mResumeJournal;
+
+    private final AirDropDiscoverProber mProber = new AirDropDiscoverProber(this::discover);
+
     private final Map<String, AirDropPeer> mPeers = new HashMap<>();
 
     private final Map<String, ReceivingSession> mReceivingSessions = new HashMap<>();
 
-    private DiscoverListener mDiscoverListener;
+    // Only touched on the main thread
+    private int mActiveSends = 0;
+
+    // Transfers the user declined or canceled, which are not to be asked about again
+    private final Set<String> mCanceledTransfers = Collections.synchronizedSet(new HashSet<>());
+
+    private final List<DiscoverListener> mDiscoverListeners = new ArrayList<>();
+
     private ReceiverListener mReceiverListener;
 
-    private ExecutorService mArchiveExecutor;
+    private final TransferScheduler mScheduler = TransferScheduler.getInstance();
+
+    private final Executor mCompressExecutor = mScheduler.executor(LANE_CPU, PRIORITY_TRANSFER);
+
+    private PreparedSend mPrepared;
+
+    private int mDefaultSendFlags = FLAG_ADAPTIVE_COMPRESSION
+            | (CPU_THREADS > 1 ? FLAG_PARALLEL_COMPRESSION : 0);
 
     private Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
 
@@ -103,14 +191,30 @@ public class AirDropManager implements
         mClient = new AirDropClient(certificateManager);
         mServer = new AirDropServer(certificateManager, this);
 
-        mArchiveExecutor = Executors.newFixedThreadPool(10);
+        mPeerCache = new AirDropPeerCache(context);
+
+        mResumeJournal = new AirDropResumeJournal(context);
     }
 
+    /**
+     * Walks folders to add up the sizes of the files in them, so it is not to be called on the
+     * main thread.
+     *
+     * @return the total size of {@code entities}, or -1 if none is known
+     */
     private long totalLength(List<Entity> entities) {
         long total = -1;
 
         for (Entity entity : entities) {
-            final long size = entity.size();
+            long size = entity.size();
+            if (entity instanceof DirectoryEntity) {
+                try {
+                    size = ((DirectoryEntity) entity).measure();
+                } catch (IOException e) {
+                    // Packing walks it again, and fails properly if it still can't
+                    Log.w(TAG, "Failed measuring " + entity.path(), e);
+                }
+            }
             if (size >= 0) {
                 if (total == -1) {
                     total = size;
@@ -137,22 +241,99 @@ public class AirDropManager implements
         return STATUS_OK;
     }
 
+    /**
+     * Peers found before, for example while another listener was discovering, are reported to
+     * {@code discoverListener} right away.
+     */
     @Override
     public void startDiscover(DiscoverListener discoverListener) {
         if (ready() != STATUS_OK) {
             return;
         }
 
-        mDiscoverListener = discoverListener;
+        if (mDiscoverListeners.contains(discoverListener)) {
+            return;
+        }
+
+        mDiscoverListeners.add(discoverListener);
+
+        for (AirDropPeer peer : mPeers.values()) {
+            discoverListener.onPeerFound(peer);
+        }
 
         mBleController.triggerDiscoverable();
-        mNsdController.startDiscover(mWlanController.getLocalAddress());
+
+        if (mDiscoverListeners.size() == 1) {
+            mNsdController.startDiscover(mWlanController.getLocalAddress());
+            addCachedPeers();
+        }
+    }
+
+    /**
+     * Lists the peers seen in earlier sessions as probable ones until discovery finds them,
+     * dropping those that do not even accept a connection any more.
+     */
+    private void addCachedPeers() {
+        mScheduler.execute(LANE_IO, PRIORITY_INTERACTIVE, this, () -> {
+            // Reading the preferences may block on the disk
+            final List<AirDropPeer> peers = mPeerCache.load();
+            mMainThreadHandler.post(() -> addCachedPeers(peers));
+        });
+    }
+
+    private void addCachedPeers(List<AirDropPeer> peers) {
+        if (mDiscoverListeners.isEmpty()) {
+            return;
+        }
+
+        for (AirDropPeer peer : peers) {
+            if (mPeers.containsKey(peer.id)) {
+                continue;
+            }
+
+            mPeers.put(peer.id, peer);
+            for (DiscoverListener listener : new ArrayList<>(mDiscoverListeners)) {
+                listener.onPeerFound(peer);
+            }
+
+            mScheduler.execute(LANE_IO, PRIORITY_INTERACTIVE, this, () -> {
+                if (!probe(peer.url)) {
+                    mMainThreadHandler.post(() -> {
+                        Log.d(TAG, "Remembered peer is gone: " + peer.id);
+                        mPeerCache.remove(peer.id);
+                        if (mPeers.get(peer.id) == peer) {
+                            onServiceLost(peer.id);
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    private static boolean probe(String url) {
+        final URI uri = URI.create(url);
+        try (final Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(uri.getHost(), uri.getPort()), PROBE_TIMEOUT_MS);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     @Override
-    public void stopDiscover() {
+    public void stopDiscover(DiscoverListener discoverListener) {
+        if (!mDiscoverListeners.remove(discoverListener) || !mDiscoverListeners.isEmpty()) {
+            return;
+        }
+
         mBleController.stop();
         mNsdController.stopDiscover();
+
+        Log.d(TAG, "Discover probes: " + mProber);
+
+        // Peers leaving go unnoticed while not discovering, so the next discovery starts over
+        mProber.cancelAll();
+        mPeers.clear();
     }
 
     public void startDiscoverable(ReceiverListener receiverListener) {
@@ -165,6 +346,8 @@ public class AirDropManager implements
         final int port = mServer.start(mWlanController.getLocalAddress().getHostAddress());
 
         mNsdController.publish(mWlanController.getLocalAddress(), port);
+
+        mScheduler.execute(LANE_IO, PRIORITY_BACKGROUND, this, mResumeJournal::sweep);
     }
 
     public void stopDiscoverable() {
@@ -172,9 +355,16 @@ public class AirDropManager implements
         mServer.stop();
     }
 
+    /**
+     * @return whether a send is under way, which tearing down this manager would break off
+     */
+    public boolean hasActiveSends() {
+        return mActiveSends > 0;
+    }
+
     public void destroy() {
         mNsdController.destroy();
-        mArchiveExecutor.shutdownNow();
+        mScheduler.cancel(this);
     }
 
     public void registerTrigger(PendingIntent pendingIntent) {
@@ -182,55 +372,131 @@ public class AirDropManager implements
     }
 
     void onServiceResolved(String id, String url) {
+        mProber.request(id, url);
+    }
+
+    private void discover(String id, String url, AirDropDiscoverProber.Callback callback) {
         final NSDictionary req = new NSDictionary();
 
         mClient.post(url + "/Discover", req, new AirDropClient.AirDropClientCallback() {
             @Override
             public void onFailure(IOException e) {
                 Log.w(TAG, "Failed to discover: " + id, e);
+                callback.onProbed(false);
             }
 
             @Override
             public void onResponse(NSDictionary response) {
                 final AirDropPeer peer = AirDropPeer.from(response, id, url);
-                if (peer == null) {
+                if (!callback.onProbed(peer != null) || peer == null) {
                     return;
                 }
 
                 mPeers.put(id, peer);
-                mDiscoverListener.onPeerFound(peer);
+                mScheduler.execute(LANE_IO, PRIORITY_BACKGROUND, AirDropManager.this,
+                        () -> mPeerCache.put(peer));
+                for (DiscoverListener listener : new ArrayList<>(mDiscoverListeners)) {
+                    listener.onPeerFound(peer);
+                }
             }
         });
     }
 
     void onServiceLost(String id) {
+        mProber.cancel(id);
         final AirDropPeer peer = mPeers.remove(id);
         if (peer != null) {
-            mDiscoverListener.onPeerDisappeared(peer);
+            for (DiscoverListener listener : new ArrayList<>(mDiscoverListeners)) {
+                listener.onPeerDisappeared(peer);
+            }
         }
     }
 
+    /**
+     * Gets ready for a send to {@code peer} while the user is still picking what to send, by
+     * opening a connection to it, which the pool keeps with its TLS handshake done, and setting
+     * up the parts of the /Ask request that do not depend on the files.
+     */
     @Override
-    public SendingSession send(AirDropPeer peer, List<Entity> entities, SendListener listener) {
-        Log.d(TAG, "Asking " + peer.id + " to receive " + entities.size() + " files");
+    public void prepare(AirDropPeer peer) {
+        Log.d(TAG, "Preparing to send to " + peer.id);
 
-        final AtomicReference<Cancelable> ref = new AtomicReference<>();
-        final AtomicBoolean thumbnailCanceled = new AtomicBoolean(false);
+        mPrepared = new PreparedSend(peer.id, createAskRequest());
 
-        final String firstType = entities.get(0).type();
-        if (!TextUtils.isEmpty(firstType) && firstType.startsWith("image/")) {
-            ref.set(() -> thumbnailCanceled.set(true));
+        mClient.post(peer.url + "/Discover", new NSDictionary(),
+                new AirDropClient.AirDropClientCallback() {
+                    @Override
+                    public void onFailure(IOException e) {
+                        Log.w(TAG, "Failed to prepare: " + peer.id, e);
+                    }
 
-            mArchiveExecutor.execute(() -> {
-                final byte[] thumbnail = AirDropThumbnailUtil.generate(entities.get(0));
-                mMainThreadHandler.post(() -> {
-                    if (!thumbnailCanceled.get()) {
-                        ask(ref, peer, thumbnail, entities, listener);
+                    @Override
+                    public void onResponse(NSDictionary response) {
                     }
                 });
-            });
+    }
+
+    private NSDictionary createAskRequest() {
+        final NSDictionary req = new NSDictionary();
+        req.put("SenderID", mConfigManager.getId());
+        req.put("SenderComputerName", mConfigManager.getName());
+        req.put("BundleID", "com.apple.finder");
+        req.put("ConvertMediaFormats", false);
+        return req;
+    }
+
+    private NSDictionary takeAskRequest(AirDropPeer peer) {
+        final PreparedSend prepared = mPrepared;
+        if (prepared != null && prepared.peerId.equals(peer.id)) {
+            mPrepared = null;
+            if (SystemClock.elapsedRealtime() - prepared.preparedAt < PREPARE_TIMEOUT_MS) {
+                return prepared.askRequest;
+            }
+        }
+        return createAskRequest();
+    }
+
+    public void setDefaultSendFlags(int flags) {
+        mDefaultSendFlags = flags;
+    }
+
+    @Override
+    public SendingSession send(AirDropPeer peer, List<Entity> entities, SendListener listener) {
+        return send(peer, entities, listener, mDefaultSendFlags);
+    }
+
+    public SendingSession send(AirDropPeer peer, List<Entity> entities, SendListener listener,
+                               int flags) {
+        Log.d(TAG, "Asking " + peer.id + " to receive " + entities.size() + " files");
+
+        mProber.markUsed(peer.id);
+
+        final AtomicReference<Cancelable> ref = new AtomicReference<>();
+        final AirDropClient.HandshakeStats stats = new AirDropClient.HandshakeStats();
+
+        final TrackedSendListener tracked = new TrackedSendListener(listener);
+
+        final ResumableSend resumable = peer.getMokeeApiVersion() >= MOKEE_API_RESUME
+                ? new ResumableSend(ref, peer, entities, flags, tracked)
+                : null;
+        final SendListener sendListener = resumable != null ? resumable : tracked;
+        final String transferId = resumable != null ? resumable.transferId : null;
+
+        // A peer that takes raw files has nothing to pack ahead for
+        final SpeculativeUpload speculative = (flags & FLAG_SPECULATIVE_PACKING) != 0
+                && peer.getMokeeApiVersion() < MOKEE_API_NATIVE
+                ? new SpeculativeUpload(peer, entities, flags, sendListener)
+                : null;
+
+        if (speculative != null) {
+            generateIcon(ref, entities, icon -> ask(ref, peer, stats, icon, entities, transferId,
+                    sendListener, response -> speculative.upload(ref, stats),
+                    speculative::discard));
         } else {
-            ask(ref, peer, null, entities, listener);
+            generateIcon(ref, entities, icon -> ask(ref, peer, stats, icon, entities, transferId,
+                    sendListener, response -> upload(ref, peer, stats, entities, flags,
+                            response, sendListener), () -> {
+                    }));
         }
 
         return new SendingSession() {
@@ -241,17 +507,87 @@ public class AirDropManager implements
                     cancelable.cancel();
                     Log.d(TAG, "Canceled");
                 }
+                if (speculative != null) {
+                    speculative.discard();
+                }
+                if (resumable != null) {
+                    resumable.cancel();
+                }
+                tracked.end();
             }
         };
     }
 
-    private void ask(AtomicReference<Cancelable> ref, AirDropPeer peer, byte[] icon,
-                     List<Entity> entities, SendListener listener) {
-        final NSDictionary req = new NSDictionary();
-        req.put("SenderID", mConfigManager.getId());
-        req.put("SenderComputerName", mConfigManager.getName());
-        req.put("BundleID", "com.apple.finder");
-        req.put("ConvertMediaFormats", false);
+    /**
+     * Sends the same entities to several peers, reading and compressing them only once. Peers
+     * that accept within a few seconds of the first acceptance share one archive, while later
+     * ones are sent their own. Each peer has its own upload buffer, and once a slow peer has
+     * filled it, the shared archive waits for that peer.
+     *
+     * @return one session per peer, in the order of {@code peers}, each canceling only the
+     * sending to its own peer
+     */
+    public List<SendingSession> broadcast(List<AirDropPeer> peers, List<Entity> entities,
+                                          List<SendListener> listeners) {
+        return broadcast(peers, entities, listeners, mDefaultSendFlags);
+    }
+
+    public List<SendingSession> broadcast(List<AirDropPeer> peers, List<Entity> entities,
+                                          List<SendListener> listeners, int flags) {
+        Log.d(TAG, "Asking " + peers.size() + " peers to receive " + entities.size() + " files");
+
+        final Broadcast broadcast = new Broadcast(entities, flags);
+        final List<SendingSession> sessions = new ArrayList<>();
+
+        for (int i = 0; i < peers.size(); i++) {
+            mProber.markUsed(peers.get(i).id);
+            final TrackedSendListener tracked = new TrackedSendListener(listeners.get(i));
+            final BroadcastBranch branch = new BroadcastBranch(peers.get(i), tracked);
+            broadcast.branches.add(branch);
+            sessions.add(new SendingSession() {
+                @Override
+                public void cancel() {
+                    broadcast.cancel(branch);
+                    tracked.end();
+                }
+            });
+        }
+
+        broadcast.ask();
+
+        return sessions;
+    }
+
+    private void generateIcon(AtomicReference<Cancelable> ref, List<Entity> entities,
+                              IconCallback callback) {
+        final String firstType = entities.get(0).type();
+        if (TextUtils.isEmpty(firstType) || !firstType.startsWith("image/")) {
+            callback.onIcon(null);
+            return;
+        }
+
+        final AtomicBoolean thumbnailCanceled = new AtomicBoolean(false);
+        ref.set(() -> thumbnailCanceled.set(true));
+
+        mScheduler.execute(LANE_CPU, PRIORITY_INTERACTIVE, this, () -> {
+            final byte[] thumbnail = AirDropThumbnailUtil.generate(entities.get(0));
+            mMainThreadHandler.post(() -> {
+                if (!thumbnailCanceled.get()) {
+                    callback.onIcon(thumbnail);
+                }
+            });
+        });
+    }
+
+    /**
+     * @param transferId if not null, lets a WarpShare peer journal the upload under this ID,
+     *                   and offers it raw uploads of each file if it takes them
+     */
+    private void ask(AtomicReference<Cancelable> ref, AirDropPeer peer,
+                     AirDropClient.HandshakeStats stats, byte[] icon, List<Entity> entities,
+                     String transferId, SendListener listener, AcceptedCallback acceptedCallback,
+                     Runnable rejectedCallback) {
+        final NSDictionary req = takeAskRequest(peer);
 
         final List<NSDictionary> files = new ArrayList<>();
         for (Entity entity : entities) {
@@ -259,7 +595,7 @@ public class AirDropManager implements
             file.put("FileName", entity.name());
             file.put("FileType", getEntryType(entity));
             file.put("FileBomPath", entity.path());
-            file.put("FileIsDirectory", false);
+            file.put("FileIsDirectory", entity.isDirectory());
             file.put("ConvertMediaFormats", 0);
             files.add(file);
         }
@@ -270,79 +606,200 @@ public class AirDropManager implements
             req.put("FileIcon", icon);
         }
 
-        final Call call = mClient.post(peer.url + "/Ask", req,
+        if (transferId != null) {
+            req.put(KEY_TRANSFER_ID, transferId);
+            if (peer.getMokeeApiVersion() >= MOKEE_API_NATIVE) {
+                req.put(KEY_NATIVE, true);
+            }
+        }
+
+        final Call call = mClient.post(peer.url + "/Ask", req, stats,
                 new AirDropClient.AirDropClientCallback() {
                     @Override
                     public void onFailure(IOException e) {
-                        Log.w(TAG, "Failed to ask: " + peer.id, e);
+                        Log.w(TAG, "Failed to ask: " + peer.id + ", sent "
+                                + stats.getFirstRequestDelayMillis() + " ms after start", e);
                         ref.set(null);
-                        listener.onRejected();
+                        rejectedCallback.run();
+                        reportFailure(listener, e, true);
                     }
 
                     @Override
                     public void onResponse(NSDictionary response) {
-                        Log.d(TAG, "Accepted");
+                        Log.d(TAG, "Accepted, asked " + stats.getFirstRequestDelayMillis()
+                                + " ms after start with " + stats);
                         listener.onAccepted();
-                        upload(ref, peer, entities, listener);
+                        acceptedCallback.onAccepted(response);
                     }
                 });
 
         ref.set(call::cancel);
     }
 
+    /**
+     * Uploads in the way the peer agreed to in its answer to the /Ask, picking up where an
+     * earlier upload stopped if it says so
+     */
     private void upload(AtomicReference<Cancelable> ref, AirDropPeer peer,
-                        List<Entity> entities, SendListener listener) {
-        final Pipe archive = new Pipe(1024);
+                        AirDropClient.HandshakeStats stats, List<Entity> entities, int flags,
+                        NSDictionary response, SendListener listener) {
+        final AirDropArchiveUtil.ResumePoint resume = parseResumePoint(response);
+        if (resume != null) {
+            Log.d(TAG, "Resuming upload to " + peer.id + " from " + resume);
+        }
 
-        final long bytesTotal = totalLength(entities);
-        final GossipyInputStream.Listener streamReadListener = new GossipyInputStream.Listener() {
-            private long bytesSent = 0;
+        final NSObject nativeNode = response != null ? response.get(KEY_NATIVE) : null;
+        if (nativeNode instanceof NSNumber && ((NSNumber) nativeNode).boolValue()) {
+            new NativeUpload(ref, peer, stats, listener).start(entities, resume);
+        } else {
+            uploadArchive(ref, peer, stats, entities, flags, resume, listener);
+        }
+    }
 
-            @Override
-            public void onRead(int length) {
-                if (bytesTotal == -1) {
-                    return;
-                }
-                bytesSent += length;
-                mMainThreadHandler.post(() -> listener.onProgress(bytesSent, bytesTotal));
+    private void uploadArchive(AtomicReference<Cancelable> ref, AirDropPeer peer,
+                               AirDropClient.HandshakeStats stats, List<Entity> entities,
+                               int flags, AirDropArchiveUtil.ResumePoint resume,
+                               SendListener listener) {
+        final AirDropRingBuffer archive = new AirDropRingBuffer(UPLOAD_BUFFER_DEPTH);
+        final Cancelable upload = postUpload(ref, peer, stats, archive, listener);
+
+        mScheduler.execute(LANE_TRANSFER, PRIORITY_TRANSFER, this, () -> {
+            final GossipyInputStream.Listener streamReadListener = createProgressListener(
+                    totalLength(entities), listener::onProgress);
+            try {
+                packInto(archive, entities, streamReadListener, flags, resume);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to pack upload payload: " + peer.id, e);
+                mMainThreadHandler.post(() -> failUpload(ref, upload, listener));
             }
-        };
+        });
+    }
+
+    /**
+     * Packs into {@code archive} and closes it. If packing fails, the archive is canceled
+     * instead, so that the upload reading it breaks off rather than ends as if complete.
+     */
+    private void packInto(AirDropRingBuffer archive, List<Entity> entities,
+                          GossipyInputStream.Listener streamReadListener, int flags,
+                          AirDropArchiveUtil.ResumePoint resume) throws IOException {
+        final OutputStream sink = archive.sink();
+        try {
+            pack(entities, sink, streamReadListener, flags, resume);
+        } catch (IOException | RuntimeException e) {
+            archive.cancel();
+            throw e;
+        }
+        sink.close();
+    }
+
+    /**
+     * Cancels {@code upload} and reports it failed, unless it has ended already. Only
+     * {@code upload} itself is taken off {@code ref}, so that a retry already under way is
+     * left alone.
+     */
+    private void failUpload(AtomicReference<Cancelable> ref, Cancelable upload,
+                            SendListener listener) {
+        if (ref.compareAndSet(upload, null)) {
+            upload.cancel();
+            listener.onSendFailed();
+        }
+    }
+
+    /**
+     * Reports a failed request of a send. A resumable send ends for good where the peer
+     * answered the request with a failure, and asks again only where the connection was lost.
+     */
+    private static void reportFailure(SendListener listener, IOException e, boolean asking) {
+        if (listener instanceof ResumableSend && e instanceof AirDropClient.StatusException) {
+            ((ResumableSend) listener).onRefused();
+        } else if (asking) {
+            listener.onRejected();
+        } else {
+            listener.onSendFailed();
+        }
+    }
 
-        final Call call = mClient.post(peer.url + "/Upload",
-                Okio.buffer(archive.source()).inputStream(),
+    /**
+     * @return what cancels the upload, which is also set to {@code ref} until it ends
+     */
+    private Cancelable postUpload(AtomicReference<Cancelable> ref, AirDropPeer peer,
+                                  AirDropClient.HandshakeStats stats, AirDropRingBuffer archive,
+                                  SendListener listener) {
+        final Call call = mClient.post(peer.url + "/Upload", archive.source(), stats,
                 new AirDropClient.AirDropClientCallback() {
                     @Override
                     public void onFailure(IOException e) {
-                        Log.e(TAG, "Failed to upload: " + peer.id, e);
+                        Log.e(TAG, "Failed to upload: " + peer.id + " after " + stats, e);
+                        archive.cancel();
                         ref.set(null);
-                        listener.onSendFailed();
+                        reportFailure(listener, e, false);
                     }
 
                     @Override
                     public void onResponse(NSDictionary response) {
-                        Log.d(TAG, "Uploaded");
+                        Log.d(TAG, "Uploaded to " + peer.id + " after " + stats);
                         ref.set(null);
                         listener.onSent();
                     }
                 });
 
-        ref.set(call::cancel);
+        final Cancelable upload = () -> {
+            call.cancel();
+            archive.cancel();
+        };
+        ref.set(upload);
+        return upload;
+    }
 
-        mArchiveExecutor.execute(() -> {
-            try (final BufferedSink sink = Okio.buffer(archive.sink())) {
-                AirDropArchiveUtil.pack(entities, sink.outputStream(), streamReadListener);
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to pack upload payload: " + peer.id, e);
-                mMainThreadHandler.post(listener::onSendFailed);
+    private GossipyInputStream.Listener createProgressListener(
+            long bytesTotal, ProgressAggregator.Callback callback) {
+        if (bytesTotal == -1) {
+            return length -> {
+            };
+        }
+        return new ProgressAggregator(mMainThreadHandler, bytesTotal, callback);
+    }
+
+    private void pack(List<Entity> entities, OutputStream output,
+                      GossipyInputStream.Listener streamReadListener, int flags,
+                      AirDropArchiveUtil.ResumePoint resume) throws IOException {
+        final boolean parallel = (flags & FLAG_PARALLEL_COMPRESSION) != 0;
+        final boolean adaptive = (flags & FLAG_ADAPTIVE_COMPRESSION) != 0;
+        AirDropArchiveUtil.pack(entities, output, streamReadListener,
+                parallel ? mCompressExecutor : null, CPU_THREADS, adaptive, resume);
+    }
+
+    private static AirDropArchiveUtil.ResumePoint parseResumePoint(NSDictionary response) {
+        final NSObject resumeNode = response != null ? response.get(KEY_RESUME) : null;
+        if (!(resumeNode instanceof NSDictionary)) {
+            return null;
+        }
+
+        final NSDictionary resume = (NSDictionary) resumeNode;
+
+        final Set<String> completed = new HashSet<>();
+        final NSObject completedNode = resume.get("Completed");
+        if (completedNode instanceof NSArray) {
+            for (NSObject path : ((NSArray) completedNode).getArray()) {
+                completed.add(path.toJavaObject(String.class));
             }
-        });
+        }
+
+        final NSObject partialNode = resume.get("Partial");
+        final NSObject offsetNode = resume.get("Offset");
+        if (partialNode == null || !(offsetNode instanceof NSNumber)) {
+            return new AirDropArchiveUtil.ResumePoint(completed, null, 0);
+        }
+
+        return new AirDropArchiveUtil.ResumePoint(completed,
+                partialNode.toJavaObject(String.class), ((NSNumber) offsetNode).longValue());
     }
 
     void handleDiscover(@SuppressWarnings("unused") String ip,
                         @SuppressWarnings("unused") NSDictionary request,
                         AirDropServer.ResultCallback callback) {
         final JsonObject mokee = new JsonObject();
-        mokee.addProperty("APIVersion", 1);
+        mokee.addProperty("APIVersion", MOKEE_API_VERSION);
 
         final JsonObject vendor = new JsonObject();
         vendor.add("org.mokee", mokee);
@@ -417,6 +874,52 @@ public class AirDropManager implements
             }
         }
 
+        final NSObject transferIdNode = request.get(KEY_TRANSFER_ID);
+        final String transferId = transferIdNode != null
+                ? transferIdNode.toJavaObject(String.class) : null;
+
+        if (transferId != null && mCanceledTransfers.contains(transferId)) {
+            // Asked again after a dropped connection, but the user has ended it already, so
+            // whatever was journaled is not to be resumed without asking
+            Log.d(TAG, "Refusing the canceled upload of " + transferId + " from " + ip);
+            mResumeJournal.remove(transferId);
+            callback.call(null);
+            return;
+        }
+
+        if (transferId != null) {
+            final ReceivingSession stale = findReceivingSession(transferId);
+            if (stale != null) {
+                // The sender noticed the dropped connection before the old upload did
+                Log.d(TAG, "Superseding the upload of " + transferId + " from " + stale.ip);
+                stale.superseded = true;
+                if (stale.stream != null) {
+                    stale.endedCallback = () -> handleAsk(ip, request, callback);
+                    stale.cancel();
+                    return;
+                }
+                stale.cancel();
+                mReceiverListener.onAirDropRequestCanceled(stale);
+
+                // Raw files still being written would race the new session for the same files
+                stale.whenNativeStreamsEnded(() -> {
+                    if (stale.accepted && stale.checkpoint != null) {
+                        // Files that came in raw were checkpointed without closing a stream
+                        mResumeJournal.save(stale.checkpoint);
+                    }
+                    handleAsk(ip, request, callback);
+                });
+                return;
+            }
+        }
+
+        final AirDropResumeJournal.Checkpoint checkpoint = transferId != null
+                ? loadCheckpoint(transferId, id, filePaths) : null;
+
+        final NSObject nativeNode = request.get(KEY_NATIVE);
+        final boolean nativeUpload = nativeNode instanceof NSNumber
+                && ((NSNumber) nativeNode).boolValue();
+
         final ReceivingSession session = new ReceivingSession(ip, id, name, fileTypes, filePaths, icon) {
             @Override
             public void accept() {
@@ -424,17 +927,45 @@ public class AirDropManager implements
                 response.put("ReceiverModelName", "Android");
                 response.put("ReceiverComputerName", mConfigManager.getName());
 
+                accepted = true;
+
+                if (this.nativeUpload) {
+                    response.put(KEY_NATIVE, true);
+                }
+
+                if (isResuming()) {
+                    final NSDictionary resume = new NSDictionary();
+                    resume.put("Completed", this.checkpoint.getCompleted());
+                    if (this.checkpoint.getPartial() != null) {
+                        resume.put("Partial", this.checkpoint.getPartial());
+                        resume.put("Offset", this.checkpoint.getOffset());
+                    }
+                    response.put(KEY_RESUME, resume);
+                }
+
                 callback.call(response);
             }
 
             @Override
             public void reject() {
+                if (this.checkpoint != null) {
+                    mCanceledTransfers.add(this.checkpoint.transferId);
+                }
                 callback.call(null);
                 mReceivingSessions.remove(ip);
             }
 
             @Override
             public void cancel() {
+                if (!superseded && this.checkpoint != null) {
+                    mCanceledTransfers.add(this.checkpoint.transferId);
+                }
+                canceled = true;
+                closeNativeStreams();
+                if (this.nativeUpload && !superseded) {
+                    whenNativeStreamsEnded(() -> mMainThreadHandler.post(
+                            () -> endCanceledNativeUpload(this)));
+                }
                 if (stream != null) {
                     try {
                         stream.close();
@@ -446,11 +977,50 @@ public class AirDropManager implements
             }
         };
 
+        session.nativeUpload = nativeUpload;
+
+        if (checkpoint != null) {
+            Log.d(TAG, "Resuming " + transferId + " from " + ip);
+            session.resume(checkpoint);
+        } else if (transferId != null) {
+            session.checkpoint = new AirDropResumeJournal.Checkpoint(transferId, id,
+                    session.targetFileNames);
+        }
+
         mReceivingSessions.put(ip, session);
 
         mReceiverListener.onAirDropRequest(session);
     }
 
+    private ReceivingSession findReceivingSession(String transferId) {
+        for (ReceivingSession session : mReceivingSessions.values()) {
+            if (session.checkpoint != null
+                    && session.checkpoint.transferId.equals(transferId)) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the journal entry of an earlier upload of the same files from the same sender
+     */
+    private AirDropResumeJournal.Checkpoint loadCheckpoint(String transferId, String senderId,
+                                                          List<String> paths) {
+        final AirDropResumeJournal.Checkpoint checkpoint = mResumeJournal.load(transferId);
+        if (checkpoint == null) {
+            return null;
+        }
+
+        if (!checkpoint.senderId.equals(senderId)
+                || !checkpoint.fileNames.keySet().equals(new HashSet<>(paths))) {
+            Log.w(TAG, "Ignoring the journal of " + transferId + ": Another sender or files");
+            return null;
+        }
+
+        return checkpoint;
+    }
+
     void handleAskCanceled(String ip) {
         final ReceivingSession session = mReceivingSessions.remove(ip);
         mReceiverListener.onAirDropRequestCanceled(session);
@@ -466,58 +1036,230 @@ public class AirDropManager implements
 
         session.stream = stream;
 
-        final AirDropArchiveUtil.FileFactory fileFactory = new AirDropArchiveUtil.FileFactory() {
-            private final int fileCount = session.paths.size();
-            private int fileIndex = 0;
+        final AirDropResumeJournal.Checkpoint checkpoint = session.checkpoint;
+        final String resumePath = checkpoint != null ? checkpoint.getPartial() : null;
+        final long resumeOffset = checkpoint != null ? checkpoint.getOffset() : 0;
+
+        final int fileCount = session.paths.size();
+
+        // Files are written on a stage of their own, so that a slow disk doesn't hold up decoding
+        final AirDropEntryWriter writer = new AirDropEntryWriter(
+                command -> mScheduler.execute(LANE_TRANSFER, PRIORITY_TRANSFER, this, command),
+                (name, size, input) -> {
+                    final int fileIndex = session.paths.indexOf(
+                            AirDropArchiveUtil.getTopLevelPath(name));
+
+                    final GossipyInputStream.Listener streamReadListener = new ProgressAggregator(
+                            mMainThreadHandler, size, (bytesReceived, bytesTotal) -> {
+                                if (fileIndex < fileCount && mReceivingSessions.containsKey(ip)) {
+                                    mReceiverListener.onAirDropTransferProgress(session, name,
+                                            bytesReceived, bytesTotal, fileIndex, fileCount);
+                                }
+                            });
+
+                    final long offset = name.equals(resumePath) ? resumeOffset : 0;
+
+                    InputStream source = new GossipyInputStream(input, streamReadListener);
+                    if (checkpoint != null) {
+                        checkpoint.begin(name, offset);
+                        source = new GossipyInputStream(source, checkpoint::advance);
+                    }
 
-            @Override
-            public void onFile(final String name, final long size, InputStream input) {
-                final GossipyInputStream.Listener streamReadListener = new GossipyInputStream.Listener() {
-                    private long bytesReceived = 0;
+                    mReceiverListener.onAirDropTransfer(session, name, source, offset,
+                            offset + size);
 
-                    @Override
-                    public void onRead(int length) {
-                        bytesReceived += length;
-                        mMainThreadHandler.post(() -> {
-                            if (fileIndex < fileCount && mReceivingSessions.containsKey(ip)) {
-                                mReceiverListener.onAirDropTransferProgress(session, name,
-                                        bytesReceived, size, fileIndex, fileCount);
-                            }
-                        });
+                    if (checkpoint != null && checkpoint.getOffset() == offset + size) {
+                        checkpoint.complete(name);
+                        mResumeJournal.checkpoint(checkpoint);
                     }
-                };
-
-                mReceiverListener.onAirDropTransfer(session, name, new GossipyInputStream(input, streamReadListener));
-                fileIndex++;
-            }
-        };
+                });
 
-        mArchiveExecutor.execute(() -> {
+        mScheduler.execute(LANE_TRANSFER, PRIORITY_BACKGROUND, this, () -> {
             try {
-                AirDropArchiveUtil.unpack(stream, new HashSet<>(session.paths), fileFactory);
+                try {
+                    AirDropArchiveUtil.unpack(stream, new HashSet<>(session.paths), writer::write);
+                } finally {
+                    writer.close();
+                }
+                if (checkpoint != null) {
+                    mResumeJournal.remove(checkpoint.transferId);
+                }
                 mMainThreadHandler.post(() -> {
                     mReceiverListener.onAirDropTransferDone(session);
                     mReceivingSessions.remove(ip);
                     callback.call(new NSDictionary());
+                    if (session.endedCallback != null) {
+                        session.endedCallback.run();
+                    }
                 });
             } catch (IOException e) {
                 Log.e(TAG, "Failed receiving files", e);
+                if (checkpoint != null) {
+                    // Keep what arrived for the sender to resume, unless the user canceled
+                    if (session.canceled && !session.superseded) {
+                        mResumeJournal.remove(checkpoint.transferId);
+                    } else {
+                        mResumeJournal.save(checkpoint);
+                    }
+                }
                 mMainThreadHandler.post(() -> {
                     mReceiverListener.onAirDropTransferFailed(session);
                     mReceivingSessions.remove(ip);
                     callback.call(null);
+                    if (session.endedCallback != null) {
+                        session.endedCallback.run();
+                    }
                 });
             }
         });
     }
 
+    void handleUploadFile(String ip, String path, long length, InputStream stream,
+                          AirDropServer.ResultCallback callback) {
+        final ReceivingSession session = mReceivingSessions.get(ip);
+        if (session == null || !session.nativeUpload) {
+            Log.w(TAG, "File upload from " + ip + " not accepted");
+            callback.call(null);
+            return;
+        }
+
+        if (path == null || !AirDropArchiveUtil.isSafePath(path)
+                || !session.paths.contains(AirDropArchiveUtil.getTopLevelPath(path))) {
+            Log.w(TAG, "Invalid file upload from " + ip + ": " + path);
+            callback.call(null);
+            return;
+        }
+
+        session.addNativeStream(stream);
+
+        final int fileIndex = session.paths.indexOf(AirDropArchiveUtil.getTopLevelPath(path));
+        final int fileCount = session.paths.size();
+
+        final GossipyInputStream.Listener streamReadListener = createProgressListener(
+                length, (bytesReceived, bytesTotal) -> {
+                    if (mReceivingSessions.get(ip) == session) {
+                        mReceiverListener.onAirDropTransferProgress(session, path,
+                                bytesReceived, bytesTotal, fileIndex, fileCount);
+                    }
+                });
+
+        mScheduler.execute(LANE_TRANSFER, PRIORITY_BACKGROUND, this, () -> {
+            final long[] received = {0};
+            final boolean complete;
+            try {
+                mReceiverListener.onAirDropTransfer(session, path, new GossipyInputStream(stream,
+                        count -> {
+                            received[0] += count;
+                            streamReadListener.onRead(count);
+                        }), 0, length);
+
+                complete = (length == -1 || received[0] == length) && endsCleanly(stream);
+
+                if (complete) {
+                    session.nativeCompleted.add(path);
+                    if (session.checkpoint != null) {
+                        session.checkpoint.complete(path);
+                        mResumeJournal.checkpoint(session.checkpoint);
+                    }
+                }
+            } finally {
+                // Only once the file is in place and checkpointed
+                session.removeNativeStream(stream);
+            }
+
+            mMainThreadHandler.post(() -> {
+                if (complete) {
+                    callback.call(new NSDictionary());
+                } else {
+                    Log.e(TAG, "Failed receiving " + path + " from " + ip);
+                    callback.call(null);
+                    failNativeUpload(session);
+                }
+            });
+        });
+    }
+
+    void handleFinish(String ip, NSDictionary request, AirDropServer.ResultCallback callback) {
+        final ReceivingSession session = mReceivingSessions.get(ip);
+        if (session == null || !session.nativeUpload) {
+            Log.w(TAG, "Finish from " + ip + " not accepted");
+            callback.call(null);
+            return;
+        }
+
+        final NSObject filesNode = request.get("Files");
+        final int count = filesNode instanceof NSNumber ? ((NSNumber) filesNode).intValue() : -1;
+        if (count != session.nativeCompleted.size()) {
+            Log.w(TAG, "Upload from " + ip + " finished with " + session.nativeCompleted.size()
+                    + " of " + count + " files");
+            callback.call(null);
+            failNativeUpload(session);
+            return;
+        }
+
+        session.ended = true;
+        if (session.checkpoint != null) {
+            mResumeJournal.remove(session.checkpoint.transferId);
+        }
+        mReceiverListener.onAirDropTransferDone(session);
+        mReceivingSessions.remove(ip);
+        callback.call(new NSDictionary());
+    }
+
+    private void failNativeUpload(ReceivingSession session) {
+        // A canceled session ends once all of its files have stopped being written
+        if (session.ended || session.canceled) {
+            return;
+        }
+        session.ended = true;
+        session.closeNativeStreams();
+        if (session.checkpoint != null) {
+            mResumeJournal.save(session.checkpoint);
+        }
+        mReceivingSessions.remove(session.ip);
+        mReceiverListener.onAirDropTransferFailed(session);
+    }
+
+    /**
+     * Gives up on a raw upload the user canceled, once none of its files is being written any
+     * more, the way a canceled archive upload is given up on
+     */
+    private void endCanceledNativeUpload(ReceivingSession session) {
+        if (session.ended) {
+            return;
+        }
+        session.ended = true;
+        if (session.checkpoint != null) {
+            mResumeJournal.remove(session.checkpoint.transferId);
+        }
+        mReceiverListener.onAirDropTransferFailed(session);
+    }
+
+    /**
+     * @return whether {@code stream} was read up to a proper end, rather than cut off or left
+     * unread by a writer that gave up
+     */
+    static boolean endsCleanly(InputStream stream) {
+        try {
+            return stream.read() == -1;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     public interface ReceiverListener {
 
         void onAirDropRequest(ReceivingSession session);
 
         void onAirDropRequestCanceled(ReceivingSession session);
 
-        void onAirDropTransfer(ReceivingSession session, String fileName, InputStream input);
+        /**
+         * @param offset where in the file {@code input} starts. Above zero, the file was partly
+         *               received before and is to be cut to {@code offset} and appended to.
+         * @param size   the size of the whole file once received, or -1 if it is not known
+         */
+        void onAirDropTransfer(ReceivingSession session, String fileName, InputStream input,
+                               long offset, long size);
 
         void onAirDropTransferProgress(ReceivingSession session, String fileName,
                                        long bytesReceived, long bytesTotal,
@@ -535,6 +1277,645 @@ public class AirDropManager implements
 
     }
 
+    private interface IconCallback {
+
+        void onIcon(byte[] icon);
+
+    }
+
+    private interface AcceptedCallback {
+
+        void onAccepted(NSDictionary response);
+
+    }
+
+    /**
+     * The archive of a send packed into a bounded ring while the /Ask is pending. The packer
+     * stops once {@link #SPECULATIVE_BUFFER_DEPTH} segments are queued and carries on at the
+     * normal depth when the upload starts draining them. Progress is held back until then.
+     */
+    private class SpeculativeUpload {
+
+        final AirDropPeer peer;
+        final SendListener listener;
+
+        final AirDropRingBuffer archive = new AirDropRingBuffer(SPECULATIVE_BUFFER_DEPTH);
+
+        // Only touched on the main thread
+        boolean accepted = false;
+        boolean discarded = false;
+        boolean failed = false;
+        long bytesDone = 0;
+        long bytesTotal = -1;
+
+        AtomicReference<Cancelable> ref;
+        Cancelable upload;
+
+        SpeculativeUpload(AirDropPeer peer, List<Entity> entities, int flags,
+                          SendListener listener) {
+            this.peer = peer;
+            this.listener = listener;
+
+            mScheduler.execute(LANE_TRANSFER, PRIORITY_TRANSFER, AirDropManager.this, () -> {
+                final GossipyInputStream.Listener streamReadListener = createProgressListener(
+                        totalLength(entities), this::onProgress);
+                try {
+                    packInto(archive, entities, streamReadListener, flags, null);
+                } catch (IOException e) {
+                    mMainThreadHandler.post(() -> onPackFailed(e));
+                }
+            });
+        }
+
+        void upload(AtomicReference<Cancelable> ref, AirDropClient.HandshakeStats stats) {
+            accepted = true;
+
+            if (failed) {
+                listener.onSendFailed();
+                return;
+            }
+
+            Log.d(TAG, "Uploading to " + peer.id + " with " + archive.size() / 1024
+                    + " KiB packed ahead");
+
+            archive.setDepth(UPLOAD_BUFFER_DEPTH);
+            this.ref = ref;
+            this.upload = postUpload(ref, peer, stats, archive, listener);
+
+            if (bytesTotal != -1) {
+                listener.onProgress(bytesDone, bytesTotal);
+            }
+        }
+
+        void discard() {
+            if (!discarded) {
+                discarded = true;
+                archive.cancel();
+            }
+        }
+
+        private void onProgress(long bytesDone, long bytesTotal) {
+            if (accepted) {
+                listener.onProgress(bytesDone, bytesTotal);
+            } else {
+                this.bytesDone = bytesDone;
+                this.bytesTotal = bytesTotal;
+            }
+        }
+
+        private void onPackFailed(IOException e) {
+            if (discarded) {
+                return;
+            }
+
+            Log.e(TAG, "Failed to pack upload payload: " + peer.id, e);
+
+            if (accepted) {
+                failUpload(ref, upload, listener);
+            } else {
+                failed = true;
+            }
+        }
+
+    }
+
+    /**
+     * A send to a WarpShare peer that, when the upload fails after the peer has accepted, asks
+     * again under the same transfer ID and uploads only what the peer's journal lacks.
+     */
+    private class ResumableSend implements SendListener {
+
+        final String transferId = UUID.randomUUID().toString();
+
+        final AtomicReference<Cancelable> ref;
+        final AirDropPeer peer;
+        final List<Entity> entities;
+        final int flags;
+        final SendListener listener;
+
+        private final Runnable mRetry = this::retry;
+
+        private int mAttempts = 0;
+        private boolean mAccepted = false;
+        private boolean mRetryPending = false;
+        private boolean mCanceled = false;
+
+        ResumableSend(AtomicReference<Cancelable> ref, AirDropPeer peer, List<Entity> entities,
+                      int flags, SendListener listener) {
+            this.ref = ref;
+            this.peer = peer;
+            this.entities = entities;
+            this.flags = flags;
+            this.listener = listener;
+        }
+
+        void cancel() {
+            mCanceled = true;
+            mMainThreadHandler.removeCallbacks(mRetry);
+        }
+
+        @Override
+        public void onAccepted() {
+            if (!mAccepted) {
+                mAccepted = true;
+                listener.onAccepted();
+            }
+        }
+
+        @Override
+        public void onRejected() {
+            if (mAccepted) {
+                // Asking again failed, most likely because the peer is still unreachable
+                onSendFailed();
+            } else {
+                listener.onRejected();
+            }
+        }
+
+        /**
+         * The peer answered with a failure, as when its user declined or canceled, which asking
+         * again would not change
+         */
+        void onRefused() {
+            if (mCanceled) {
+                return;
+            }
+            cancel();
+            listener.onRejected();
+        }
+
+        @Override
+        public void onProgress(long bytesSent, long bytesTotal) {
+            listener.onProgress(bytesSent, bytesTotal);
+        }
+
+        @Override
+        public void onSent() {
+            if (mAttempts > 0) {
+                Log.d(TAG, "Sent " + transferId + " after resuming " + mAttempts + " times");
+            }
+            listener.onSent();
+        }
+
+        @Override
+        public void onSendFailed() {
+            if (mCanceled || mRetryPending) {
+                return;
+            }
+
+            if (!mAccepted || mAttempts >= RESUME_MAX_ATTEMPTS) {
+                listener.onSendFailed();
+                return;
+            }
+
+            final long delay = RESUME_BACKOFF_MS << mAttempts;
+            mAttempts++;
+            mRetryPending = true;
+
+            Log.d(TAG, "Resuming " + transferId + " in " + delay + " ms, attempt " + mAttempts);
+            mMainThreadHandler.postDelayed(mRetry, delay);
+        }
+
+        private void retry() {
+            mRetryPending = false;
+            if (mCanceled) {
+                return;
+            }
+
+            // The peer may have come back with another address
+            final AirDropPeer current = mPeers.get(peer.id);
+            final AirDropPeer target = current != null ? current : peer;
+
+            final AirDropClient.HandshakeStats stats = new AirDropClient.HandshakeStats();
+
+            ask(ref, target, stats, null, entities, transferId, this,
+                    response -> upload(ref, target, stats, entities, flags, response, this),
+                    () -> {
+                    });
+        }
+
+    }
+
+    /**
+     * Uploads each file on its own as raw bytes, with no gzip or cpio, {@link #NATIVE_STREAMS}
+     * at a time, to a WarpShare peer that agreed to it. The peer is told the number of files at
+     * the end, so that it can tell a finished transfer from a cut-off one.
+     */
+    private class NativeUpload {
+
+        final AtomicReference<Cancelable> ref;
+        final AirDropPeer peer;
+        final AirDropClient.HandshakeStats stats;
+        final SendListener listener;
+
+        // Only touched on the main thread
+        private final List<Call> mCalls = new ArrayList<>();
+        private List<Entity> mFiles;
+        private int mFileCount;
+        private GossipyInputStream.Listener mStreamReadListener;
+        private int mNext = 0;
+        private int mInFlight = 0;
+        private boolean mEnded = false;
+
+        NativeUpload(AtomicReference<Cancelable> ref, AirDropPeer peer,
+                     AirDropClient.HandshakeStats stats, SendListener listener) {
+            this.ref = ref;
+            this.peer = peer;
+            this.stats = stats;
+            this.listener = listener;
+        }
+
+        void start(List<Entity> entities, AirDropArchiveUtil.ResumePoint resume) {
+            ref.set(this::cancel);
+
+            mScheduler.execute(LANE_IO, PRIORITY_TRANSFER, AirDropManager.this, () -> {
+                final List<Entity> files = new ArrayList<>();
+                try {
+                    for (Entity entity : entities) {
+                        if (entity instanceof DirectoryEntity) {
+                            ((DirectoryEntity) entity).walk(new DirectoryEntity.Visitor() {
+                                @Override
+                                public void onDirectory(String path) {
+                                    // Made on the peer as the files inside arrive
+                                }
+
+                                @Override
+                                public void onFile(Entity file) {
+                                    files.add(file);
+                                }
+                            });
+                        } else {
+                            files.add(entity);
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to list files: " + peer.id, e);
+                    mMainThreadHandler.post(() -> fail(e));
+                    return;
+                }
+
+                mMainThreadHandler.post(() -> upload(files, resume));
+            });
+        }
+
+        private void upload(List<Entity> files, AirDropArchiveUtil.ResumePoint resume) {
+            if (mEnded) {
+                return;
+            }
+
+            final List<Entity> pending = new ArrayList<>();
+            long skipped = 0;
+            for (Entity file : files) {
+                if (resume != null && resume.completed.contains(file.path())) {
+                    skipped += Math.max(file.size(), 0);
+                } else {
+                    pending.add(file);
+                }
+            }
+
+            mFiles = pending;
+            mFileCount = files.size();
+            mStreamReadListener = createProgressListener(totalLength(files),
+                    listener::onProgress);
+            AirDropArchiveUtil.reportSkipped(mStreamReadListener, skipped);
+
+            Log.d(TAG, "Uploading " + pending.size() + " of " + files.size() + " files to "
+                    + peer.id + " in up to " + NATIVE_STREAMS + " streams");
+
+            if (pending.isEmpty()) {
+                finish();
+                return;
+            }
+
+            while (mNext < mFiles.size() && mInFlight < NATIVE_STREAMS) {
+                next();
+            }
+        }
+
+        private void next() {
+            final Entity file = mFiles.get(mNext++);
+            mInFlight++;
+
+            mCalls.add(mClient.post(peer.url + "/UploadFile", file.path(), file.size(),
+                    () -> new GossipyInputStream(file.stream(), mStreamReadListener), stats,
+                    new AirDropClient.AirDropClientCallback() {
+                        @Override
+                        public void onFailure(IOException e) {
+                            Log.e(TAG, "Failed to upload " + file.path() + " to " + peer.id, e);
+                            fail(e);
+                        }
+
+                        @Override
+                        public void onResponse(NSDictionary response) {
+                            mInFlight--;
+                            if (mEnded) {
+                                return;
+                            }
+                            if (mNext < mFiles.size()) {
+                                next();
+                            } else if (mInFlight == 0) {
+                                finish();
+                            }
+                        }
+                    }));
+        }
+
+        private void finish() {
+            final NSDictionary req = new NSDictionary();
+            req.put("Files", mFileCount);
+
+            mCalls.add(mClient.post(peer.url + "/Finish", req, stats,
+                    new AirDropClient.AirDropClientCallback() {
+                        @Override
+                        public void onFailure(IOException e) {
+                            Log.e(TAG, "Failed to finish upload: " + peer.id, e);
+                            fail(e);
+                        }
+
+                        @Override
+                        public void onResponse(NSDictionary response) {
+                            if (mEnded) {
+                                return;
+                            }
+                            mEnded = true;
+                            Log.d(TAG, "Uploaded to " + peer.id + " after " + stats);
+                            ref.set(null);
+                            listener.onSent();
+                        }
+                    }));
+        }
+
+        private void fail(IOException e) {
+            if (mEnded) {
+                return;
+            }
+            cancel();
+            ref.set(null);
+            reportFailure(listener, e, false);
+        }
+
+        private void cancel() {
+            mEnded = true;
+            for (Call call : mCalls) {
+                call.cancel();
+            }
+        }
+
+    }
+
+    /**
+     * Counts a send as active from its start until it has ended one way or another
+     */
+    private class TrackedSendListener implements SendListener {
+
+        private final SendListener mListener;
+
+        private boolean mEnded = false;
+
+        TrackedSendListener(SendListener listener) {
+            mListener = listener;
+            mActiveSends++;
+        }
+
+        void end() {
+            if (!mEnded) {
+                mEnded = true;
+                mActiveSends--;
+            }
+        }
+
+        @Override
+        public void onAccepted() {
+            mListener.onAccepted();
+        }
+
+        @Override
+        public void onRejected() {
+            end();
+            mListener.onRejected();
+        }
+
+        @Override
+        public void onProgress(long bytesSent, long bytesTotal) {
+            mListener.onProgress(bytesSent, bytesTotal);
+        }
+
+        @Override
+        public void onSent() {
+            end();
+            mListener.onSent();
+        }
+
+        @Override
+        public void onSendFailed() {
+            end();
+            mListener.onSendFailed();
+        }
+
+    }
+
+    private static class PreparedSend {
+
+        final String peerId;
+        final NSDictionary askRequest;
+        final long preparedAt = SystemClock.elapsedRealtime();
+
+        PreparedSend(String peerId, NSDictionary askRequest) {
+            this.peerId = peerId;
+            this.askRequest = askRequest;
+        }
+
+    }
+
+    private class BroadcastBranch {
+
+        final AirDropPeer peer;
+        final SendListener listener;
+
+        final AtomicReference<Cancelable> ref = new AtomicReference<>();
+        final AirDropClient.HandshakeStats stats = new AirDropClient.HandshakeStats();
+
+        boolean asking = true;
+        boolean accepted = false;
+
+        AirDropRingBuffer archive;
+
+        BroadcastBranch(AirDropPeer peer, SendListener listener) {
+            this.peer = peer;
+            this.listener = listener;
+        }
+
+        boolean waiting() {
+            return accepted && archive == null && ref.get() != null;
+        }
+
+    }
+
+    /**
+     * State of one {@link #broadcast(List, List, List, int)}, only touched on the main thread
+     * except for the packing itself.
+     */
+    private class Broadcast {
+
+        final List<Entity> entities;
+        final int flags;
+
+        final List<BroadcastBranch> branches = new ArrayList<>();
+
+        private final Runnable mStartRunnable = this::start;
+
+        private boolean mScheduled = false;
+        private boolean mStarted = false;
+
+        Broadcast(List<Entity> entities, int flags) {
+            this.entities = entities;
+            this.flags = flags;
+        }
+
+        void ask() {
+            final AtomicReference<Cancelable> iconRef = new AtomicReference<>();
+            generateIcon(iconRef, entities, icon -> {
+                for (BroadcastBranch branch : branches) {
+                    if (branch.asking) {
+                        ask(branch, icon);
+                    }
+                }
+            });
+        }
+
+        private void ask(BroadcastBranch branch, byte[] icon) {
+            final SendListener listener = new SendListener() {
+                @Override
+                public void onAccepted() {
+                    branch.listener.onAccepted();
+                }
+
+                @Override
+                public void onRejected() {
+                    branch.asking = false;
+                    branch.listener.onRejected();
+                    update();
+                }
+
+                @Override
+                public void onProgress(long bytesSent, long bytesTotal) {
+                    branch.listener.onProgress(bytesSent, bytesTotal);
+                }
+
+                @Override
+                public void onSent() {
+                    branch.listener.onSent();
+                }
+
+                @Override
+                public void onSendFailed() {
+                    branch.listener.onSendFailed();
+                }
+            };
+
+            AirDropManager.this.ask(branch.ref, branch.peer, branch.stats, icon, entities, null,
+                    listener, response -> {
+                branch.asking = false;
+                if (mStarted) {
+                    Log.d(TAG, branch.peer.id + " accepted late, sending separately");
+                    uploadArchive(branch.ref, branch.peer, branch.stats, entities, flags,
+                            null, branch.listener);
+                } else {
+                    branch.accepted = true;
+                    update();
+                }
+            }, () -> {
+            });
+        }
+
+        void cancel(BroadcastBranch branch) {
+            branch.asking = false;
+            final Cancelable cancelable = branch.ref.getAndSet(null);
+            if (cancelable != null) {
+                cancelable.cancel();
+                Log.d(TAG, "Canceled " + branch.peer.id);
+            }
+            update();
+        }
+
+        private void update() {
+            if (mStarted) {
+                return;
+            }
+
+            boolean anyAsking = false;
+            boolean anyWaiting = false;
+            for (BroadcastBranch branch : branches) {
+                anyAsking |= branch.asking;
+                anyWaiting |= branch.waiting();
+            }
+
+            if (!anyAsking) {
+                mMainThreadHandler.removeCallbacks(mStartRunnable);
+                start();
+            } else if (anyWaiting && !mScheduled) {
+                // Only the first acceptance schedules, later ones leave the deadline alone
+                mScheduled = true;
+                mMainThreadHandler.postDelayed(mStartRunnable, BROADCAST_JOIN_WINDOW_MS);
+            }
+        }
+
+        private void start() {
+            if (mStarted) {
+                return;
+            }
+            mStarted = true;
+
+            final List<BroadcastBranch> joined = new ArrayList<>();
+            final List<OutputStream> sinks = new ArrayList<>();
+            for (BroadcastBranch branch : branches) {
+                if (branch.waiting()) {
+                    branch.archive = new AirDropRingBuffer(UPLOAD_BUFFER_DEPTH);
+                    postUpload(branch.ref, branch.peer, branch.stats, branch.archive,
+                            branch.listener);
+                    joined.add(branch);
+                    sinks.add(branch.archive.sink());
+                }
+            }
+
+            if (joined.isEmpty()) {
+                return;
+            }
+
+            Log.d(TAG, "Uploading to " + joined.size() + " peers at once");
+
+            mScheduler.execute(LANE_TRANSFER, PRIORITY_TRANSFER, AirDropManager.this, () -> {
+                final GossipyInputStream.Listener streamReadListener = createProgressListener(
+                        totalLength(entities), (bytesSent, bytesTotal) -> {
+                            for (BroadcastBranch branch : joined) {
+                                if (branch.ref.get() != null) {
+                                    branch.listener.onProgress(bytesSent, bytesTotal);
+                                }
+                            }
+                        });
+                try {
+                    pack(entities, new AirDropTeeOutputStream(sinks), streamReadListener, flags,
+                            null);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to pack broadcast payload", e);
+                    for (BroadcastBranch branch : joined) {
+                        branch.archive.cancel();
+                    }
+                    mMainThreadHandler.post(() -> {
+                        for (BroadcastBranch branch : joined) {
+                            final Cancelable cancelable = branch.ref.getAndSet(null);
+                            if (cancelable != null) {
+                                cancelable.cancel();
+                                branch.listener.onSendFailed();
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+    }
+
     @SuppressWarnings("WeakerAccess")
     public abstract class ReceivingSession {
 
@@ -551,6 +1932,23 @@ public class AirDropManager implements
 
         InputStream stream;
 
+        AirDropResumeJournal.Checkpoint checkpoint;
+
+        boolean accepted = false;
+        boolean canceled = false;
+        boolean superseded = false;
+        boolean ended = false;
+
+        // Whether the files come as raw uploads of their own instead of an archive
+        boolean nativeUpload = false;
+        final Set<String> nativeCompleted = Collections.synchronizedSet(new HashSet<>());
+        private final List<InputStream> mNativeStreams = new ArrayList<>();
+        private Runnable mNativeStreamsEnded;
+
+        Runnable endedCallback;
+
+        private boolean mResuming = false;
+
         ReceivingSession(String ip, String id, String name, List<String> types, List<String> paths,
                          @Nullable Bitmap preview) {
             this.ip = ip;
@@ -570,6 +1968,77 @@ public class AirDropManager implements
 
         public abstract void cancel();
 
+        /**
+         * @return whether this continues an upload that was accepted before, so that it needs
+         * no asking again
+         */
+        public boolean isResuming() {
+            return mResuming;
+        }
+
+        /**
+         * @return whether what was received so far is kept for the sender to resume, rather
+         * than given up on
+         */
+        public boolean isResumable() {
+            return checkpoint != null && (!canceled || superseded);
+        }
+
+        void resume(AirDropResumeJournal.Checkpoint checkpoint) {
+            this.checkpoint = checkpoint;
+            targetFileNames.putAll(checkpoint.fileNames);
+            nativeCompleted.addAll(checkpoint.getCompleted());
+            mResuming = true;
+        }
+
+        void addNativeStream(InputStream stream) {
+            synchronized (mNativeStreams) {
+                mNativeStreams.add(stream);
+            }
+        }
+
+        void removeNativeStream(InputStream stream) {
+            final Runnable ended;
+            synchronized (mNativeStreams) {
+                mNativeStreams.remove(stream);
+                if (!mNativeStreams.isEmpty() || mNativeStreamsEnded == null) {
+                    return;
+                }
+                ended = mNativeStreamsEnded;
+                mNativeStreamsEnded = null;
+            }
+            mMainThreadHandler.post(ended);
+        }
+
+        /**
+         * Closes the streams of raw files being received. Each stays counted until the task
+         * writing it has ended.
+         */
+        void closeNativeStreams() {
+            synchronized (mNativeStreams) {
+                for (InputStream stream : mNativeStreams) {
+                    try {
+                        stream.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        /**
+         * Runs {@code callback} on the main thread once no raw file is being received, right
+         * away if none is
+         */
+        void whenNativeStreamsEnded(Runnable callback) {
+            synchronized (mNativeStreams) {
+                if (!mNativeStreams.isEmpty()) {
+                    mNativeStreamsEnded = callback;
+                    return;
+                }
+            }
+            callback.run();
+        }
+
         private String assignFileName(String fileName) {
             final String[] segments = fileName.split("/");
             fileName = segments[segments.length - 1];
@@ -581,7 +2050,14 @@ public class AirDropManager implements
         @NonNull
         @SuppressWarnings("ConstantConditions")
         public String getFileName(String path) {
-            return targetFileNames.get(path);
+            final String fileName = targetFileNames.get(path);
+            if (fileName != null) {
+                return fileName;
+            }
+
+            // A file inside an asked directory goes below the name given to that directory
+            final String topLevelPath = AirDropArchiveUtil.getTopLevelPath(path);
+            return targetFileNames.get(topLevelPath) + path.substring(topLevelPath.length());
         }
 
     }
@@ -35,10 +35,21 @@ public class AirDropPeer extends Peer {
 
     final String url;
 
-    private AirDropPeer(String id, String name, String url, JsonObject capabilities) {
+    private final boolean mProbable;
+
+    private AirDropPeer(String id, String name, String url, JsonObject capabilities,
+                        boolean probable) {
         super(id, name);
         this.url = url;
         this.capabilities = capabilities;
+        mProbable = probable;
+    }
+
+    /**
+     * A peer remembered from an earlier session, not yet seen again in this one
+     */
+    static AirDropPeer probable(String id, String name, String url, JsonObject capabilities) {
+        return new AirDropPeer(id, name, url, capabilities, true);
     }
 
     static AirDropPeer from(NSDictionary dict, String id, String url) {
@@ -62,7 +73,11 @@ public class AirDropPeer extends Peer {
             }
         }
 
-        return new AirDropPeer(id, name, url, capabilities);
+        return new AirDropPeer(id, name, url, capabilities, false);
+    }
+
+    public boolean isProbable() {
+        return mProbable;
     }
 
     public int getMokeeApiVersion() {
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mokee.warpshare.airdrop;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the peers seen recently, so that they can be listed before discovery has found
+ * them again. Entries expire {@link #TTL_MS} after the peer was last seen.
+ */
+class AirDropPeerCache {
+
+    private static final String TAG = "AirDropPeerCache";
+
+    private static final String PREF_NAME = "airdrop_peers";
+
+    private static final long TTL_MS = TimeUnit.DAYS.toMillis(1);
+
+    private static final int MAX_PEERS = 32;
+
+    private final SharedPreferences mPref;
+
+    private final Gson mGson = new Gson();
+
+    AirDropPeerCache(Context context) {
+        mPref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Reads from disk, so it is not to be called on the main thread.
+     *
+     * @return the peers that have not expired yet, last seen first
+     */
+    List<AirDropPeer> load() {
+        final long now = System.currentTimeMillis();
+        final List<Record> records = new ArrayList<>();
+        final SharedPreferences.Editor editor = mPref.edit();
+
+        for (Map.Entry<String, ?> entry : mPref.getAll().entrySet()) {
+            final Record record = parse(entry.getKey(), entry.getValue());
+            if (record == null || now - record.seen > TTL_MS || record.seen > now) {
+                editor.remove(entry.getKey());
+            } else {
+                records.add(record);
+            }
+        }
+
+        editor.apply();
+
+        Collections.sort(records, (a, b) -> Long.compare(b.seen, a.seen));
+
+        final List<AirDropPeer> peers = new ArrayList<>();
+        for (Record record : records) {
+            peers.add(AirDropPeer.probable(record.id, record.name, record.url,
+                    record.capabilities));
+        }
+        return peers;
+    }
+
+    /**
+     * Reads the other entries to find one to evict, so it is not to be called on the main
+     * thread either.
+     */
+    void put(AirDropPeer peer) {
+        final Record record = new Record();
+        record.id = peer.id;
+        record.name = peer.name;
+        record.url = peer.url;
+        record.capabilities = peer.capabilities;
+        record.seen = System.currentTimeMillis();
+
+        final SharedPreferences.Editor editor = mPref.edit();
+        editor.putString(peer.id, mGson.toJson(record));
+
+        final Map<String, ?> all = mPref.getAll();
+        if (!all.containsKey(peer.id) && all.size() >= MAX_PEERS) {
+            String oldest = null;
+            long oldestSeen = Long.MAX_VALUE;
+            for (Map.Entry<String, ?> entry : all.entrySet()) {
+                final Record other = parse(entry.getKey(), entry.getValue());
+                final long seen = other == null ? 0 : other.seen;
+                if (seen < oldestSeen) {
+                    oldest = entry.getKey();
+                    oldestSeen = seen;
+                }
+            }
+            editor.remove(oldest);
+        }
+
+        editor.apply();
+    }
+
+    void remove(String id) {
+        mPref.edit().remove(id).apply();
+    }
+
+    private Record parse(String id, Object value) {
+        if (!(value instanceof String)) {
+            return null;
+        }
+        try {
+            final Record record = mGson.fromJson((String) value, Record.class);
+            if (record == null || record.name == null || record.url == null) {
+                return null;
+            }
+            record.id = id;
+            return record;
+        } catch (JsonParseException e) {
+            Log.w(TAG, "Dropping unreadable entry: " + id, e);
+            return null;
+        }
+    }
+
+    private static class Record {
+
+        transient String id;
+
+        String name;
+        String url;
+        JsonObject capabilities;
+        long seen;
+
+    }
+
+}
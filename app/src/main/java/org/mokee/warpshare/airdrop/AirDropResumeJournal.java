@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.warpshare.airdrop;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers how far the uploads of resumable transfers got, so that a sender retrying after a
+ * dropped connection only has to send what is still missing. Entries expire {@link #TTL_MS}
+ * after they were last updated.
+ */
+class AirDropResumeJournal {
+
+    private static final String TAG = "AirDropResumeJournal";
+
+    private static final String PREF_NAME = "airdrop_resume";
+
+    private static final long TTL_MS = TimeUnit.DAYS.toMillis(1);
+
+    // Progress within an upload is written out at most this often, failures right away
+    private static final long SAVE_INTERVAL_MS = 1000;
+
+    private final SharedPreferences mPref;
+
+    private final Gson mGson = new Gson();
+
+    AirDropResumeJournal(Context context) {
+        mPref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the checkpoint of {@code transferId}, or null if there is none or it has expired
+     */
+    Checkpoint load(String transferId) {
+        final String value = mPref.getString(transferId, null);
+        if (value == null) {
+            return null;
+        }
+
+        final Checkpoint checkpoint;
+        try {
+            checkpoint = mGson.fromJson(value, Checkpoint.class);
+        } catch (JsonParseException e) {
+            Log.w(TAG, "Dropping unreadable entry: " + transferId, e);
+            remove(transferId);
+            return null;
+        }
+
+        final long now = System.currentTimeMillis();
+        if (checkpoint == null || checkpoint.senderId == null || checkpoint.fileNames == null
+                || now - checkpoint.updated > TTL_MS || checkpoint.updated > now) {
+            remove(transferId);
+            return null;
+        }
+
+        checkpoint.transferId = transferId;
+        return checkpoint;
+    }
+
+    void save(Checkpoint checkpoint) {
+        final String value;
+        synchronized (checkpoint) {
+            checkpoint.updated = System.currentTimeMillis();
+            checkpoint.lastSaved = SystemClock.elapsedRealtime();
+            value = mGson.toJson(checkpoint);
+        }
+        mPref.edit().putString(checkpoint.transferId, value).apply();
+    }
+
+    /**
+     * Saves {@code checkpoint} unless it was saved less than {@link #SAVE_INTERVAL_MS} ago.
+     * Losing the latest progress to a crash only means resending a little more.
+     */
+    void checkpoint(Checkpoint checkpoint) {
+        synchronized (checkpoint) {
+            if (SystemClock.elapsedRealtime() - checkpoint.lastSaved < SAVE_INTERVAL_MS) {
+                return;
+            }
+        }
+        save(checkpoint);
+    }
+
+    void remove(String transferId) {
+        mPref.edit().remove(transferId).apply();
+    }
+
+    /**
+     * Drops the entries that have expired, for transfers their senders gave up on.
+     */
+    void sweep() {
+        int count = 0;
+        for (String transferId : mPref.getAll().keySet()) {
+            if (load(transferId) == null) {
+                count++;
+            }
+        }
+
+        if (count > 0) {
+            Log.d(TAG, "Dropped " + count + " expired entries");
+        }
+    }
+
+    /**
+     * Which files of a transfer have been received completely, and how much of the file after
+     * them. Updated by the thread unpacking the upload while other threads may read it.
+     */
+    static class Checkpoint {
+
+        transient String transferId;
+        transient long lastSaved;
+
+        String senderId;
+
+        // Asked path to the name of the file it is saved as
+        Map<String, String> fileNames;
+
+        List<String> completed = new ArrayList<>();
+
+        String partial;
+        long offset;
+
+        long updated;
+
+        Checkpoint(String transferId, String senderId, Map<String, String> fileNames) {
+            this.transferId = transferId;
+            this.senderId = senderId;
+            this.fileNames = new HashMap<>(fileNames);
+        }
+
+        synchronized void begin(String name, long offset) {
+            this.partial = name;
+            this.offset = offset;
+        }
+
+        synchronized void advance(int length) {
+            offset += length;
+        }
+
+        synchronized long getOffset() {
+            return offset;
+        }
+
+        synchronized String getPartial() {
+            return partial;
+        }
+
+        synchronized void complete(String name) {
+            completed.add(name);
+            partial = null;
+            offset = 0;
+        }
+
+        synchronized List<String> getCompleted() {
+            return new ArrayList<>(completed);
+        }
+
+    }
+
+}
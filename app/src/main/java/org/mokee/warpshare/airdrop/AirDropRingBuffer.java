@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.warpshare.airdrop;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded ring of pooled segments connecting one producer thread to one consumer thread.
+ * Unlike {@link okio.Pipe}, data is handed over a whole segment at a time, so the two threads
+ * only need to synchronize once per {@link #SEGMENT_SIZE} bytes.
+ * <p>
+ * Producers either write to {@link #sink()}, which blocks while all {@code depth} slots are
+ * occupied, or call {@link #offer(ByteBuffer...)} from threads that must never block, which
+ * reports when the ring is full and fires the {@link OnDrainListener} once the consumer has
+ * drained it to half depth again. Both fail once the consumer has closed {@link #source()}.
+ */
+class AirDropRingBuffer {
+
+    static final int SEGMENT_SIZE = 64 * 1024;
+
+    static final int DEFAULT_DEPTH = 16;
+
+    private static final int POOL_MAX_SEGMENTS = 64;
+
+    private static final ArrayDeque<Segment> sPool = new ArrayDeque<>();
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<>();
+
+    private int mDepth;
+
+    private boolean mSinkClosed = false;
+    private boolean mSourceClosed = false;
+
+    private boolean mDrainPending = false;
+    private OnDrainListener mOnDrainListener;
+
+    private final OutputStream mSink = new OutputStream() {
+        private Segment mSegment;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mSegment == null) {
+                    mSegment = obtain();
+                }
+
+                final int count = mSegment.fill(b, off, len);
+                off += count;
+                len -= count;
+
+                if (mSegment.limit == SEGMENT_SIZE) {
+                    publish();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mSegment != null && mSegment.limit > 0) {
+                publish();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                if (mSegment != null) {
+                    recycle(mSegment);
+                    mSegment = null;
+                }
+                closeSink();
+            }
+        }
+
+        private void publish() throws IOException {
+            final Segment segment = mSegment;
+            mSegment = null;
+            put(segment);
+        }
+    };
+
+    private final InputStream mSource = new InputStream() {
+        private Segment mSegment;
+        private int mPosition;
+
+        @Override
+        public int read() throws IOException {
+            final byte[] buf = new byte[1];
+            final int ret = read(buf, 0, 1);
+            return ret == -1 ? -1 : buf[0] & 0xff;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (mSegment == null || mPosition == mSegment.limit) {
+                if (mSegment != null) {
+                    recycle(mSegment);
+                    mSegment = null;
+                }
+
+                mSegment = take();
+                mPosition = 0;
+                if (mSegment == null) {
+                    return -1;
+                }
+            }
+
+            final int count = Math.min(len, mSegment.limit - mPosition);
+            System.arraycopy(mSegment.data, mPosition, b, off, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mSegment == null ? 0 : mSegment.limit - mPosition;
+        }
+
+        @Override
+        public void close() {
+            if (mSegment != null) {
+                recycle(mSegment);
+                mSegment = null;
+            }
+            closeSource();
+        }
+    };
+
+    AirDropRingBuffer() {
+        this(DEFAULT_DEPTH);
+    }
+
+    AirDropRingBuffer(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth < 1: " + depth);
+        }
+        mDepth = depth;
+    }
+
+    OutputStream sink() {
+        return mSink;
+    }
+
+    InputStream source() {
+        return mSource;
+    }
+
+    /**
+     * Changes how many segments the ring holds before the producer has to wait. Segments already
+     * queued beyond a lowered depth stay and are drained first.
+     */
+    void setDepth(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth < 1: " + depth);
+        }
+        mLock.lock();
+        try {
+            mDepth = depth;
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of bytes published by the producer and not yet taken by the consumer
+     */
+    long size() {
+        mLock.lock();
+        try {
+            long size = 0;
+            for (Segment segment : mSegments) {
+                size += segment.limit;
+            }
+            return size;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    void setOnDrainListener(OnDrainListener listener) {
+        mOnDrainListener = listener;
+    }
+
+    /**
+     * Appends without blocking, copying straight out of the given buffers and packing the bytes
+     * into the last queued segment when it still has room. The ring may overshoot its depth by
+     * one call's worth of data.
+     *
+     * @return false if the ring is now full and the producer should hold off until
+     * {@link OnDrainListener#onDrain()} is called
+     */
+    boolean offer(ByteBuffer... buffers) throws IOException {
+        mLock.lock();
+        try {
+            if (mSourceClosed) {
+                throw new IOException("source is closed");
+            }
+
+            final boolean wasEmpty = mSegments.isEmpty();
+
+            Segment tail = mSegments.peekLast();
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    if (tail == null || tail.limit == SEGMENT_SIZE) {
+                        tail = obtain();
+                        mSegments.addLast(tail);
+                    }
+
+                    tail.fill(buffer);
+                }
+            }
+
+            if (wasEmpty && !mSegments.isEmpty()) {
+                mNotEmpty.signal();
+            }
+
+            if (mSegments.size() >= mDepth) {
+                mDrainPending = true;
+                return false;
+            } else {
+                return true;
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the consumer end from any thread, failing the producer and the consumer's next
+     * read, so that a consumer can tell a cut-off stream from a finished one. Unlike closing
+     * {@link #source()}, this is safe while another thread is reading.
+     */
+    void cancel() {
+        closeSource();
+    }
+
+    private void put(Segment segment) throws IOException {
+        mLock.lock();
+        try {
+            while (mSegments.size() >= mDepth && !mSourceClosed) {
+                mNotFull.await();
+            }
+
+            if (mSourceClosed) {
+                recycle(segment);
+                throw new IOException("source is closed");
+            }
+
+            mSegments.addLast(segment);
+            mNotEmpty.signal();
+        } catch (InterruptedException e) {
+            recycle(segment);
+            throw new InterruptedIOException();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private Segment take() throws IOException {
+        OnDrainListener drained = null;
+
+        mLock.lock();
+        try {
+            while (mSegments.isEmpty()) {
+                if (mSourceClosed) {
+                    throw new IOException("source is closed");
+                }
+                if (mSinkClosed) {
+                    return null;
+                }
+                mNotEmpty.await();
+            }
+
+            final Segment segment = mSegments.pollFirst();
+            mNotFull.signal();
+
+            if (mDrainPending && mSegments.size() <= mDepth / 2) {
+                mDrainPending = false;
+                drained = mOnDrainListener;
+            }
+
+            return segment;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            mLock.unlock();
+            if (drained != null) {
+                drained.onDrain();
+            }
+        }
+    }
+
+    private void closeSink() {
+        mLock.lock();
+        try {
+            mSinkClosed = true;
+            mNotEmpty.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void closeSource() {
+        OnDrainListener drained = null;
+
+        mLock.lock();
+        try {
+            mSourceClosed = true;
+            Segment segment;
+            while ((segment = mSegments.pollFirst()) != null) {
+                recycle(segment);
+            }
+            mNotFull.signalAll();
+            mNotEmpty.signalAll();
+
+            // Wake up a paused producer so that its next offer() fails
+            if (mDrainPending) {
+                mDrainPending = false;
+                drained = mOnDrainListener;
+            }
+        } finally {
+            mLock.unlock();
+            if (drained != null) {
+                drained.onDrain();
+            }
+        }
+    }
+
+    private static Segment obtain() {
+        synchronized (sPool) {
+            final Segment segment = sPool.pollFirst();
+            if (segment != null) {
+                return segment;
+            }
+        }
+        return new Segment();
+    }
+
+    private static void recycle(Segment segment) {
+        segment.limit = 0;
+        synchronized (sPool) {
+            if (sPool.size() < POOL_MAX_SEGMENTS) {
+                sPool.addFirst(segment);
+            }
+        }
+    }
+
+    interface OnDrainListener {
+
+        void onDrain();
+
+    }
+
+    private static final class Segment {
+
+        final byte[] data = new byte[SEGMENT_SIZE];
+
+        int limit = 0;
+
+        int fill(byte[] b, int off, int len) {
+            final int count = Math.min(len, SEGMENT_SIZE - limit);
+            System.arraycopy(b, off, data, limit, count);
+            limit += count;
+            return count;
+        }
+
+        void fill(ByteBuffer buffer) {
+            final int count = Math.min(buffer.remaining(), SEGMENT_SIZE - limit);
+            buffer.get(data, limit, count);
+            limit += count;
+        }
+
+    }
+
+}
@@ -22,7 +22,9 @@ import com.dd.plist.NSDictionary;
 import com.dd.plist.PropertyListParser;
 import com.koushikdutta.async.AsyncNetworkSocket;
 import com.koushikdutta.async.AsyncSSLSocketWrapper;
+import com.koushikdutta.async.ByteBufferList;
 import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.http.Headers;
 import com.koushikdutta.async.http.server.AsyncHttpServer;
 import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
 import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
@@ -30,13 +32,15 @@ import com.koushikdutta.async.http.server.HttpServerRequestCallback;
 import com.koushikdutta.async.http.server.UnknownRequestBody;
 import com.mokee.warpshare.CertificateManager;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 
 import okio.Buffer;
-import okio.Okio;
-import okio.Pipe;
 
 class AirDropServer {
 
@@ -46,6 +50,12 @@ class AirDropServer {
 
     private static final String MIME_OCTET_STREAM = "application/octet-stream";
 
+    // Path of the file in a raw upload from another WarpShare device, URL encoded
+    static final String HEADER_PATH = "X-MoKee-Path";
+
+    // At most 2 MiB of an upload is held in memory before the socket is paused
+    private static final int UPLOAD_BUFFER_DEPTH = 32;
+
     private final CertificateManager mCertificateManager;
     private final AirDropManager mParent;
 
@@ -80,11 +90,25 @@ class AirDropServer {
         });
         mServer.post("/Upload", new InputStreamHttpServerRequestCallback() {
             @Override
-            protected void onRequest(InetAddress remote, InputStream request,
+            protected void onRequest(InetAddress remote, Headers headers, InputStream request,
                                      NSDictionaryHttpServerResponse response) {
                 handleUpload(remote, request, response);
             }
         });
+        mServer.post("/UploadFile", new InputStreamHttpServerRequestCallback() {
+            @Override
+            protected void onRequest(InetAddress remote, Headers headers, InputStream request,
+                                     NSDictionaryHttpServerResponse response) {
+                handleUploadFile(remote, headers, request, response);
+            }
+        });
+        mServer.post("/Finish", new NSDictionaryHttpServerRequestCallback() {
+            @Override
+            protected void onRequest(InetAddress remote, NSDictionary request,
+                                     NSDictionaryHttpServerResponse response) {
+                handleFinish(remote, request, response);
+            }
+        });
         Log.d(TAG, "Server running at " + host + ":" + PORT);
         return PORT;
     }
@@ -130,6 +154,50 @@ class AirDropServer {
         });
     }
 
+    private void handleUploadFile(InetAddress remote, Headers headers, InputStream request,
+                                  final NSDictionaryHttpServerResponse response) {
+        final String path;
+        try {
+            final String encodedPath = headers.get(HEADER_PATH);
+            path = encodedPath == null ? null : URLDecoder.decode(encodedPath, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            Log.e(TAG, "Invalid path of file upload", e);
+            response.send(400);
+            return;
+        }
+
+        final String contentLength = headers.get("Content-Length");
+        long length = -1;
+        if (contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Invalid length of file upload", e);
+                response.send(400);
+                return;
+            }
+        }
+
+        mParent.handleUploadFile(remote.getHostAddress(), path, length, request, result -> {
+            if (result != null) {
+                response.send(200);
+            } else {
+                response.send(401);
+            }
+        });
+    }
+
+    private void handleFinish(InetAddress remote, NSDictionary request,
+                              final NSDictionaryHttpServerResponse response) {
+        mParent.handleFinish(remote.getHostAddress(), request, result -> {
+            if (result != null) {
+                response.send(result);
+            } else {
+                response.send(401);
+            }
+        });
+    }
+
     public interface ResultCallback {
 
         void call(NSDictionary result);
@@ -162,7 +230,17 @@ class AirDropServer {
 
             socket.setClosedCallback(ex -> onCanceled(address));
 
-            emitter.setDataCallback((emitter1, bb) -> buffer.write(bb.getAllByteArray()));
+            emitter.setDataCallback((emitter1, bb) -> {
+                try {
+                    for (ByteBuffer b : bb.getAllArray()) {
+                        buffer.write(b);
+                        ByteBufferList.reclaim(b);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed receiving request", e);
+                    socketWrapper.close();
+                }
+            });
 
             request.setEndCallback(ex -> {
                 buffer.flush();
@@ -228,30 +306,58 @@ class AirDropServer {
             final UnknownRequestBody body = (UnknownRequestBody) request.getBody();
             final DataEmitter emitter = body.getEmitter();
 
-            final Pipe pipe = new Pipe(Long.MAX_VALUE);
+            final AirDropRingBuffer buffer = new AirDropRingBuffer(UPLOAD_BUFFER_DEPTH);
+
+            // Stop reading from the socket while the unpacker is behind, so that slow storage
+            // turns into TCP backpressure on the sender instead of heap growth here
+            buffer.setOnDrainListener(() -> emitter.getServer().post(() -> {
+                if (emitter.isPaused()) {
+                    emitter.resume();
+                }
+            }));
 
             emitter.setDataCallback((emitter1, bb) -> {
-                try (final Buffer buffer = new Buffer()) {
-                    buffer.write(bb.getAllByteArray());
-                    bb.recycle();
-                    pipe.sink().write(buffer, buffer.size());
+                final ByteBuffer[] buffers = bb.getAllArray();
+                try {
+                    if (!buffer.offer(buffers)) {
+                        emitter1.pause();
+                    }
                 } catch (IOException e) {
                     Log.e(TAG, "Failed receiving upload", e);
                     socketWrapper.close();
+                } finally {
+                    for (ByteBuffer b : buffers) {
+                        ByteBufferList.reclaim(b);
+                    }
                 }
             });
 
             request.setEndCallback(ex -> {
+                if (ex != null) {
+                    // Fail the reader instead of letting a cut-off upload look complete
+                    Log.e(TAG, "Failed receiving upload", ex);
+                    buffer.cancel();
+                    return;
+                }
+
                 try {
-                    pipe.sink().flush();
-                    pipe.sink().close();
+                    buffer.sink().close();
                 } catch (IOException e) {
                     Log.e(TAG, "Failed receiving upload", e);
                     response.code(500).end();
                 }
             });
 
-            onRequest(address, Okio.buffer(pipe.source()).inputStream(), new NSDictionaryHttpServerResponse() {
+            // Closing may come from another thread than the one reading, as when a transfer is
+            // canceled, so it goes through the thread-safe side of the ring
+            final InputStream source = new FilterInputStream(buffer.source()) {
+                @Override
+                public void close() {
+                    buffer.cancel();
+                }
+            };
+
+            onRequest(address, request.getHeaders(), source, new NSDictionaryHttpServerResponse() {
                 @Override
                 public void send(int code) {
                     response.code(code).end();
@@ -264,7 +370,8 @@ class AirDropServer {
             });
         }
 
-        protected abstract void onRequest(InetAddress remote, InputStream request,
+        protected abstract void onRequest(InetAddress remote, Headers headers,
+                                          InputStream request,
                                           NSDictionaryHttpServerResponse response);
 
     }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.warpshare.airdrop;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Copies everything written to it into several outputs. An output that fails is closed and
+ * dropped while the others carry on, so writing only fails once every output has failed.
+ */
+class AirDropTeeOutputStream extends OutputStream {
+
+    private final List<OutputStream> mOutputs;
+
+    AirDropTeeOutputStream(List<OutputStream> outputs) {
+        mOutputs = new ArrayList<>(outputs);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        final Iterator<OutputStream> iterator = mOutputs.iterator();
+        while (iterator.hasNext()) {
+            final OutputStream output = iterator.next();
+            try {
+                output.write(b, off, len);
+            } catch (IOException e) {
+                iterator.remove();
+                closeQuietly(output);
+            }
+        }
+        ensureOutputs();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        final Iterator<OutputStream> iterator = mOutputs.iterator();
+        while (iterator.hasNext()) {
+            final OutputStream output = iterator.next();
+            try {
+                output.flush();
+            } catch (IOException e) {
+                iterator.remove();
+                closeQuietly(output);
+            }
+        }
+        ensureOutputs();
+    }
+
+    @Override
+    public void close() {
+        for (OutputStream output : mOutputs) {
+            closeQuietly(output);
+        }
+        mOutputs.clear();
+    }
+
+    private void ensureOutputs() throws IOException {
+        if (mOutputs.isEmpty()) {
+            throw new IOException("All outputs failed");
+        }
+    }
+
+    private static void closeQuietly(OutputStream output) {
+        try {
+            output.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+}
@@ -23,6 +23,10 @@ import org.mokee.warpshare.base.Entity;
 class AirDropTypes {
 
     static String getEntryType(Entity entity) {
+        if (entity.isDirectory()) {
+            return "public.folder";
+        }
+
         final String mime = entity.type();
 
         if (!TextUtils.isEmpty(mime)) {
@@ -49,6 +53,47 @@ class AirDropTypes {
         return "public.content";
     }
 
+    /**
+     * @return true if the entity is known to be in a format that deflate cannot shrink further
+     */
+    static boolean isCompressed(Entity entity) {
+        final String mime = entity.type();
+        if (!TextUtils.isEmpty(mime)) {
+            if (mime.startsWith("video/")) {
+                return true;
+            } else if (mime.startsWith("image/")) {
+                return !mime.equals("image/bmp") && !mime.equals("image/svg+xml")
+                        && !mime.equals("image/x-ms-bmp");
+            } else if (mime.startsWith("audio/")) {
+                return !mime.equals("audio/wav") && !mime.equals("audio/x-wav");
+            }
+        }
+
+        final String name = entity.name().toLowerCase();
+        final int dot = name.lastIndexOf('.');
+        if (dot == -1) {
+            return false;
+        }
+        switch (name.substring(dot + 1)) {
+            case "zip":
+            case "gz":
+            case "tgz":
+            case "bz2":
+            case "xz":
+            case "7z":
+            case "rar":
+            case "apk":
+            case "jar":
+            case "docx":
+            case "xlsx":
+            case "pptx":
+            case "epub":
+                return true;
+            default:
+                return false;
+        }
+    }
+
     static String getMimeType(String entryType) {
         switch (entryType) {
             case "public.jpeg":
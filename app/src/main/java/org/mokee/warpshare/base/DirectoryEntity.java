@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.warpshare.base;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A folder picked through {@link android.content.Intent#ACTION_OPEN_DOCUMENT_TREE}. Its
+ * contents are never listed up front but walked one directory at a time.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DirectoryEntity extends Entity {
+
+    private static final String[] CHILD_PROJECTION = {
+            Document.COLUMN_DOCUMENT_ID,
+            Document.COLUMN_DISPLAY_NAME,
+            Document.COLUMN_MIME_TYPE,
+            Document.COLUMN_SIZE,
+    };
+
+    private static final long UNMEASURED = -2;
+
+    private final Context mContext;
+    private final Uri mTreeUri;
+
+    private volatile long mTotalSize = UNMEASURED;
+
+    public DirectoryEntity(Context context, Uri treeUri) {
+        super(context, DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                DocumentsContract.getTreeDocumentId(treeUri)), Document.MIME_TYPE_DIR);
+        mContext = context;
+        mTreeUri = treeUri;
+    }
+
+    @Override
+    public long size() {
+        return -1;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return true;
+    }
+
+    @Override
+    public InputStream stream() throws FileNotFoundException {
+        throw new FileNotFoundException("Is a directory: " + uri);
+    }
+
+    /**
+     * Walks this directory to add up the sizes of the files below it, leaving out those whose
+     * size is not known. Later calls return the same total without walking again.
+     *
+     * @return the total, or -1 if no file below has a known size
+     */
+    public long measure() throws IOException {
+        if (mTotalSize != UNMEASURED) {
+            return mTotalSize;
+        }
+
+        final long[] total = {-1};
+        walk(new Visitor() {
+            @Override
+            public void onDirectory(String path) {
+            }
+
+            @Override
+            public void onFile(Entity file) {
+                if (file.size() >= 0) {
+                    total[0] = Math.max(total[0], 0) + file.size();
+                }
+            }
+        });
+
+        mTotalSize = total[0];
+        return total[0];
+    }
+
+    /**
+     * Visits this directory and everything below it, each directory before its contents. Only
+     * the listing of one directory is held at a time.
+     */
+    public void walk(Visitor visitor) throws IOException {
+        final ContentResolver resolver = mContext.getContentResolver();
+
+        final ArrayDeque<String[]> pending = new ArrayDeque<>();
+        pending.push(new String[]{DocumentsContract.getDocumentId(uri), path()});
+
+        while (!pending.isEmpty()) {
+            final String[] directory = pending.pop();
+            final String directoryPath = directory[1];
+
+            visitor.onDirectory(directoryPath);
+
+            final List<Entity> files = new ArrayList<>();
+            final List<String[]> directories = new ArrayList<>();
+
+            final Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(
+                    mTreeUri, directory[0]);
+            try (final Cursor cursor = resolver.query(childrenUri, CHILD_PROJECTION,
+                    null, null, null)) {
+                if (cursor == null) {
+                    throw new IOException("Failed listing " + directoryPath);
+                }
+
+                while (cursor.moveToNext()) {
+                    final String id = cursor.getString(0);
+                    final String name = cursor.getString(1);
+                    final String type = cursor.getString(2);
+                    final String path = directoryPath + "/" + name;
+
+                    if (Document.MIME_TYPE_DIR.equals(type)) {
+                        directories.add(new String[]{id, path});
+                    } else {
+                        files.add(new Entity(mContext,
+                                DocumentsContract.buildDocumentUriUsingTree(mTreeUri, id),
+                                name, path, type, cursor.isNull(3) ? -1 : cursor.getLong(3)));
+                    }
+                }
+            }
+
+            for (Entity file : files) {
+                visitor.onFile(file);
+            }
+
+            for (int i = directories.size() - 1; i >= 0; i--) {
+                pending.push(directories.get(i));
+            }
+        }
+    }
+
+    public interface Visitor {
+
+        void onDirectory(String path) throws IOException;
+
+        void onFile(Entity entity) throws IOException;
+
+    }
+
+}
@@ -20,6 +20,6 @@ public interface Discoverer {
 
     void startDiscover(DiscoverListener discoverListener);
 
-    void stopDiscover();
+    void stopDiscover(DiscoverListener discoverListener);
 
 }
@@ -102,6 +102,16 @@ public class Entity {
         mOk = true;
     }
 
+    Entity(Context context, Uri uri, String name, String path, String type, long size) {
+        mContext = context;
+        this.uri = uri;
+        mName = name;
+        mPath = path;
+        mType = type;
+        mSize = size;
+        mOk = true;
+    }
+
     private Uri generateContentUri(Context context, Uri uri) {
         final String path = uri.getPath();
         if (TextUtils.isEmpty(path)) {
@@ -138,6 +148,10 @@ public class Entity {
         return mSize;
     }
 
+    public boolean isDirectory() {
+        return false;
+    }
+
     public InputStream stream() throws FileNotFoundException {
         return mContext.getContentResolver().openInputStream(uri);
     }
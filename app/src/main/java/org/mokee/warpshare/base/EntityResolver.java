@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.warpshare.base;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static android.Manifest.permission.READ_EXTERNAL_STORAGE;
+import static android.content.pm.PackageManager.PERMISSION_GRANTED;
+import static org.mokee.warpshare.base.TransferScheduler.LANE_IO;
+import static org.mokee.warpshare.base.TransferScheduler.PRIORITY_INTERACTIVE;
+
+/**
+ * Builds {@link Entity}s for picked Uris off the main thread. Items of the same MediaStore
+ * collection, which is what galleries hand out, are looked up together with one query per
+ * batch instead of one per Uri. That takes read access to the whole collection, so without it
+ * each Uri is queried on its own, under the access granted to it.
+ */
+@SuppressWarnings("WeakerAccess")
+public class EntityResolver {
+
+    private static final String TAG = "EntityResolver";
+
+    // Well below SQLite's limit of 999 bound arguments
+    private static final int BATCH_SIZE = 500;
+
+    private static final String[] PROJECTION = {
+            BaseColumns._ID,
+            MediaStore.MediaColumns.DISPLAY_NAME,
+            MediaStore.MediaColumns.SIZE,
+            MediaStore.MediaColumns.MIME_TYPE,
+    };
+
+    private final Context mContext;
+
+    private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
+
+    public EntityResolver(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Resolves in the background and calls back on the main thread with the entities that could
+     * be resolved, in the order of {@code uris}.
+     */
+    public void resolve(List<Uri> uris, String type, ResolveCallback callback) {
+        TransferScheduler.getInstance().execute(LANE_IO, PRIORITY_INTERACTIVE, null, () -> {
+            final List<Entity> entities = resolve(uris, type);
+            mMainThreadHandler.post(() -> callback.onResolved(entities));
+        });
+    }
+
+    /**
+     * Builds the entity of the folder picked as {@code treeUri} in the background, and calls
+     * back on the main thread with it, or with none if it could not be.
+     */
+    public void resolveDirectory(Uri treeUri, ResolveCallback callback) {
+        TransferScheduler.getInstance().execute(LANE_IO, PRIORITY_INTERACTIVE, null, () -> {
+            final List<Entity> entities = new ArrayList<>();
+            final Entity entity = new DirectoryEntity(mContext, treeUri);
+            if (entity.ok()) {
+                entities.add(entity);
+            }
+            mMainThreadHandler.post(() -> callback.onResolved(entities));
+        });
+    }
+
+    /**
+     * Resolves on the calling thread, which must not be the main thread.
+     */
+    public List<Entity> resolve(List<Uri> uris, String type) {
+        final Entity[] resolved = new Entity[uris.size()];
+
+        final Map<String, List<Integer>> collections = new HashMap<>();
+        final boolean batched = uris.size() > 1
+                && mContext.checkSelfPermission(READ_EXTERNAL_STORAGE) == PERMISSION_GRANTED;
+        for (int i = 0; batched && i < uris.size(); i++) {
+            final String collection = getMediaCollection(uris.get(i));
+            if (collection != null) {
+                List<Integer> indexes = collections.get(collection);
+                if (indexes == null) {
+                    indexes = new ArrayList<>();
+                    collections.put(collection, indexes);
+                }
+                indexes.add(i);
+            }
+        }
+
+        for (Map.Entry<String, List<Integer>> collection : collections.entrySet()) {
+            final List<Integer> indexes = collection.getValue();
+            for (int start = 0; start < indexes.size(); start += BATCH_SIZE) {
+                resolveBatch(Uri.parse(collection.getKey()),
+                        indexes.subList(start, Math.min(start + BATCH_SIZE, indexes.size())),
+                        uris, type, resolved);
+            }
+        }
+
+        final List<Entity> entities = new ArrayList<>();
+        for (int i = 0; i < resolved.length; i++) {
+            // Anything the batches missed is resolved on its own
+            final Entity entity = resolved[i] != null ? resolved[i]
+                    : new Entity(mContext, uris.get(i), type);
+            if (entity.ok()) {
+                entities.add(entity);
+            }
+        }
+        return entities;
+    }
+
+    private void resolveBatch(Uri collection, List<Integer> indexes, List<Uri> uris, String type,
+                              Entity[] resolved) {
+        final Map<String, List<Integer>> ids = new HashMap<>();
+        for (int index : indexes) {
+            final String id = uris.get(index).getLastPathSegment();
+            List<Integer> sameId = ids.get(id);
+            if (sameId == null) {
+                sameId = new ArrayList<>();
+                ids.put(id, sameId);
+            }
+            sameId.add(index);
+        }
+
+        final StringBuilder selection = new StringBuilder(BaseColumns._ID).append(" IN (?");
+        for (int i = 1; i < ids.size(); i++) {
+            selection.append(",?");
+        }
+        selection.append(')');
+
+        final ContentResolver resolver = mContext.getContentResolver();
+        try (final Cursor cursor = resolver.query(collection, PROJECTION,
+                selection.toString(), ids.keySet().toArray(new String[0]), null)) {
+            if (cursor == null) {
+                return;
+            }
+            while (cursor.moveToNext()) {
+                final List<Integer> sameId = ids.get(cursor.getString(0));
+                final String name = cursor.getString(1);
+                if (sameId == null || TextUtils.isEmpty(name)) {
+                    continue;
+                }
+                final long size = cursor.isNull(2) ? -1 : cursor.getLong(2);
+                final String entityType = TextUtils.isEmpty(type) ? cursor.getString(3) : type;
+                for (int index : sameId) {
+                    resolved[index] = new Entity(mContext, uris.get(index), name, "./" + name,
+                            entityType, size);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed resolving " + ids.size() + " items of " + collection, e);
+        }
+    }
+
+    /**
+     * @return the collection a MediaStore item Uri belongs to, or null if it is not one
+     */
+    private static String getMediaCollection(Uri uri) {
+        if (!ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())
+                || !MediaStore.AUTHORITY.equals(uri.getAuthority())) {
+            return null;
+        }
+
+        final String id = uri.getLastPathSegment();
+        if (TextUtils.isEmpty(id) || !TextUtils.isDigitsOnly(id)) {
+            return null;
+        }
+
+        final String string = uri.toString();
+        return string.substring(0, string.lastIndexOf('/'));
+    }
+
+    public interface ResolveCallback {
+
+        void onResolved(List<Entity> entities);
+
+    }
+
+}
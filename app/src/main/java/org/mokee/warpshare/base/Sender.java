@@ -20,6 +20,12 @@ import java.util.List;
 
 public interface Sender<P extends Peer> {
 
+    /**
+     * Hints that a send to {@code peer} is likely to follow soon, so that any setup can start
+     * while the user is still picking files.
+     */
+    void prepare(P peer);
+
     SendingSession send(P peer, List<Entity> entities, SendListener listener);
 
 }
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mokee.warpshare.base;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The process-wide pool for background work of all transfers. Work is split into three lanes:
+ * {@link #LANE_CPU} for computing, such as thumbnails and compression, with one thread per core,
+ * {@link #LANE_IO} for short work that waits on disks, content providers or the network, such
+ * as probes, resolving and journal saves, and {@link #LANE_TRANSFER} for work that blocks for as
+ * long as a transfer lasts, such as packing and unpacking archives. Within the first two lanes,
+ * queued tasks run in order of priority and then of submission. The transfer lane starts a
+ * thread for every task right away, so that transfers waiting on a peer or a user never hold
+ * up anything else. Threads are only kept while there is work.
+ */
+@SuppressWarnings("WeakerAccess")
+public class TransferScheduler {
+
+    private static final String TAG = "TransferScheduler";
+
+    public static final int LANE_CPU = 0;
+    public static final int LANE_IO = 1;
+    public static final int LANE_TRANSFER = 2;
+
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_TRANSFER = 1;
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    public static final int CPU_THREADS = Runtime.getRuntime().availableProcessors();
+
+    public static final int IO_THREADS = 8;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static TransferScheduler sInstance;
+
+    private final Lane[] mLanes = {
+            new Lane("cpu", CPU_THREADS),
+            new Lane("io", IO_THREADS),
+            new Lane("transfer", Integer.MAX_VALUE),
+    };
+
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final Set<Task> mTasks = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public static synchronized TransferScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new TransferScheduler();
+        }
+        return sInstance;
+    }
+
+    private TransferScheduler() {
+    }
+
+    public Future<?> execute(int lane, int priority, Object owner, Runnable runnable) {
+        final Task task = new Task(mLanes[lane], priority, owner, runnable);
+        if (owner != null) {
+            synchronized (mTasks) {
+                mTasks.add(task);
+            }
+        }
+        mLanes[lane].executor.execute(task);
+        return task;
+    }
+
+    /**
+     * @return an {@link Executor} that runs everything on {@code lane} at {@code priority}
+     */
+    public Executor executor(int lane, int priority) {
+        return command -> execute(lane, priority, null, command);
+    }
+
+    /**
+     * Cancels all tasks of {@code owner}, interrupting those already running.
+     */
+    public void cancel(Object owner) {
+        synchronized (mTasks) {
+            for (Task task : mTasks.toArray(new Task[0])) {
+                if (task.owner == owner) {
+                    task.cancel(true);
+                }
+            }
+        }
+    }
+
+    public Metrics getMetrics(int lane) {
+        return mLanes[lane].getMetrics();
+    }
+
+    public static class Metrics {
+
+        /**
+         * Tasks waiting for a thread
+         */
+        public final int queued;
+
+        /**
+         * Tasks running right now
+         */
+        public final int active;
+
+        public final long completed;
+
+        public final long averageWaitMillis;
+        public final long maxWaitMillis;
+
+        Metrics(int queued, int active, long completed, long averageWaitMillis,
+                long maxWaitMillis) {
+            this.queued = queued;
+            this.active = active;
+            this.completed = completed;
+            this.averageWaitMillis = averageWaitMillis;
+            this.maxWaitMillis = maxWaitMillis;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "queued=" + queued + " active=" + active + " completed=" + completed
+                    + " avgWait=" + averageWaitMillis + "ms maxWait=" + maxWaitMillis + "ms";
+        }
+
+    }
+
+    private static class Lane {
+
+        final String name;
+        final ThreadPoolExecutor executor;
+
+        final AtomicLong started = new AtomicLong();
+        final AtomicLong waitNanos = new AtomicLong();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+
+        /**
+         * @param threads the most threads to run at once, or {@link Integer#MAX_VALUE} for a
+         *                thread for every task
+         */
+        Lane(String name, int threads) {
+            this.name = name;
+            final AtomicInteger count = new AtomicInteger();
+            final ThreadFactory factory = runnable -> new Thread(runnable,
+                    "transfer-" + name + "-" + count.incrementAndGet());
+
+            if (threads == Integer.MAX_VALUE) {
+                executor = new ThreadPoolExecutor(0, threads,
+                        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                        new SynchronousQueue<>(), factory);
+            } else {
+                executor = new ThreadPoolExecutor(threads, threads,
+                        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                        new PriorityBlockingQueue<>(), factory);
+                executor.allowCoreThreadTimeOut(true);
+            }
+        }
+
+        void onStarted(long waited) {
+            started.incrementAndGet();
+            waitNanos.addAndGet(waited);
+
+            long max;
+            while ((max = maxWaitNanos.get()) < waited) {
+                if (maxWaitNanos.compareAndSet(max, waited)) {
+                    break;
+                }
+            }
+        }
+
+        Metrics getMetrics() {
+            final long count = started.get();
+            return new Metrics(executor.getQueue().size(), executor.getActiveCount(),
+                    executor.getCompletedTaskCount(),
+                    count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitNanos.get() / count),
+                    TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+        }
+
+    }
+
+    private class Task extends FutureTask<Void> implements Comparable<Task> {
+
+        final Lane lane;
+        final int priority;
+        final Object owner;
+
+        final long sequence = mSequence.getAndIncrement();
+        final long queuedAt = System.nanoTime();
+
+        Task(Lane lane, int priority, Object owner, Runnable runnable) {
+            super(runnable, null);
+            this.lane = lane;
+            this.priority = priority;
+            this.owner = owner;
+        }
+
+        @Override
+        public void run() {
+            if (!isDone()) {
+                lane.onStarted(System.nanoTime() - queuedAt);
+            }
+            super.run();
+
+            // Nobody waits on the result, so crashes would otherwise go unnoticed
+            if (isDone() && !isCancelled()) {
+                try {
+                    get();
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    Log.e(TAG, "Task failed on lane " + lane.name, cause);
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                } catch (InterruptedException ignored) {
+                    // Can't happen once done
+                }
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (owner != null) {
+                synchronized (mTasks) {
+                    mTasks.remove(this);
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (priority != other.priority) {
+                return Integer.compare(priority, other.priority);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+
+    }
+
+}
@@ -41,6 +41,7 @@ import com.microsoft.connecteddevices.remotesystems.commanding.nearshare.NearSha
 import com.microsoft.connecteddevices.remotesystems.commanding.nearshare.NearShareSender;
 import com.microsoft.connecteddevices.remotesystems.commanding.nearshare.NearShareStatus;
 
+import org.mokee.warpshare.ProgressAggregator;
 import org.mokee.warpshare.base.DiscoverListener;
 import org.mokee.warpshare.base.Discoverer;
 import org.mokee.warpshare.base.Entity;
@@ -146,10 +147,14 @@ public class NearShareManager implements
     }
 
     @Override
-    public void stopDiscover() {
+    public void stopDiscover(DiscoverListener discoverListener) {
         mRemoteSystemWatcher.stop();
     }
 
+    @Override
+    public void prepare(NearSharePeer peer) {
+    }
+
     @Override
     public SendingSession send(NearSharePeer peer, List<Entity> entities, SendListener listener) {
         final RemoteSystemConnectionRequest connectionRequest = new RemoteSystemConnectionRequest(peer.remoteSystem);
@@ -172,13 +177,15 @@ public class NearShareManager implements
         }
 
         final AtomicBoolean accepted = new AtomicBoolean(false);
+        final ProgressAggregator progressAggregator = new ProgressAggregator(
+                mHandler, -1, listener::onProgress);
 
         operation.progress().subscribe((op, progress) -> {
             if (progress.filesSent != 0 || progress.totalFilesToSend != 0) {
                 if (accepted.compareAndSet(false, true)) {
                     mHandler.post(listener::onAccepted);
                 }
-                mHandler.post(() -> listener.onProgress(progress.bytesSent, progress.totalBytesToSend));
+                progressAggregator.set(progress.bytesSent, progress.totalBytesToSend);
             }
         });
 